@@ -1,20 +1,29 @@
 package fr.bvarillon.lox;
 
-import fr.bvarillon.lox.Expr.Binary;
+import java.util.List;
 
 /**
  * AstPrinter
  */
-public class AstPrinter implements Expr.Visitor<String> {
+public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     String print(Expr expr) {
         return expr.accept(this);
     }
 
+    String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
     @Override
     public String visit(Expr.Binary expr) {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
+    @Override
+    public String visit(Expr.Inline expr) {
+        return parenthesize("inline " + expr.function.name.lexeme, expr.body);
+    }
+
     @Override
     public String visit(Expr.Grouping expr) {
         return parenthesize("group", expr.expression);
@@ -41,6 +50,21 @@ public class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(expr.name.lexeme, expr.value);
     }
 
+    @Override
+    public String visit(Expr.LocalCompareLocal expr) {
+        return parenthesize("local" + expr.comparison.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visit(Expr.LocalIncrement expr) {
+        return "(local-increment " + expr.var.name.lexeme + " " + expr.delta + ")";
+    }
+
+    @Override
+    public String visit(Expr.LocalUpdate expr) {
+        return parenthesize("local" + expr.operator.lexeme + "= " + expr.var.name.lexeme, expr.operand);
+    }
+
     @Override
     public String visit(Expr.Logical expr) {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
@@ -51,6 +75,81 @@ public class AstPrinter implements Expr.Visitor<String> {
         return parenthesize("Call", expr.callee);
     }
 
+    @Override
+    public String visit(Stmt.Block stmt) {
+        return block("block", stmt.statements);
+    }
+
+    @Override
+    public String visit(Stmt.Expression stmt) {
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visit(Stmt.Function stmt) {
+        StringBuilder name = new StringBuilder("fun ").append(stmt.name.lexeme).append(" (");
+        for (int i = 0; i < stmt.params.size(); i++) {
+            if (i > 0) name.append(" ");
+            name.append(stmt.params.get(i).lexeme);
+        }
+        return block(name.append(")").toString(), stmt.body);
+    }
+
+    @Override
+    public String visit(Stmt.If stmt) {
+        String result = "(if " + print(stmt.condition) + " " + print(stmt.thenStmt);
+        if (stmt.elseStmt != null) result += " " + print(stmt.elseStmt);
+        return result + ")";
+    }
+
+    @Override
+    public String visit(Stmt.While stmt) {
+        return "(while " + print(stmt.condition) + " " + print(stmt.body) + ")";
+    }
+
+    @Override
+    public String visit(Stmt.For stmt) {
+        return "(for " + (stmt.initializer == null ? "nil" : print(stmt.initializer))
+                + " " + (stmt.condition == null ? "nil" : print(stmt.condition))
+                + " " + (stmt.increment == null ? "nil" : print(stmt.increment))
+                + " " + print(stmt.body) + ")";
+    }
+
+    @Override
+    public String visit(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visit(Stmt.PrintVar stmt) {
+        return "(print-var " + stmt.var.name.lexeme + ")";
+    }
+
+    @Override
+    public String visit(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visit(Stmt.Var stmt) {
+        if (stmt.initializer == null) return "(var " + stmt.name.lexeme + ")";
+        return parenthesize("var " + stmt.name.lexeme, stmt.initializer);
+    }
+
+    private String block(String name, List<Stmt> stmts) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("(").append(name);
+        for (Stmt stmt : stmts) {
+            builder.append(" ");
+            builder.append(stmt.accept(this));
+        }
+        builder.append(")");
+
+        return builder.toString();
+    }
+
     private String parenthesize(String name, Expr...exprs) {
         StringBuilder builder = new StringBuilder();
 
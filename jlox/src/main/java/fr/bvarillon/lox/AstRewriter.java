@@ -0,0 +1,216 @@
+package fr.bvarillon.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AstRewriter
+ *
+ * Base of the optimization passes: rebuilds the tree bottom-up, reusing
+ * every node whose children are unchanged. A pass overrides the visits of
+ * the nodes it rewrites; a statement rewritten to null is removed.
+ */
+public abstract class AstRewriter implements Pass, Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    @Override
+    public List<Stmt> run(List<Stmt> stmts) {
+        return rewrite(stmts);
+    }
+
+    List<Stmt> rewrite(List<Stmt> stmts) {
+        List<Stmt> result = null;
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt stmt = stmts.get(i);
+            Stmt rewritten = rewrite(stmt);
+            if (rewritten != stmt && result == null) {
+                result = new ArrayList<>(stmts.subList(0, i));
+            }
+            if (result != null && rewritten != null) result.add(rewritten);
+        }
+        return result == null ? stmts : result;
+    }
+
+    Stmt rewrite(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // A removed statement where one is required.
+    static Stmt nothing() {
+        return new Stmt.Block(new ArrayList<>());
+    }
+
+    @Override
+    public Expr visit(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visit(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visit(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr rewritten = rewrite(argument);
+            changed |= rewritten != argument;
+            arguments.add(rewritten);
+        }
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visit(Expr.Inline expr) {
+        Expr call = rewrite(expr.call);
+        Expr body = rewrite(expr.body);
+        if (call == expr.call && body == expr.body) return expr;
+        // A call is only rewritten into another call.
+        return new Expr.Inline((Expr.Call)call, expr.function, body);
+    }
+
+    @Override
+    public Expr visit(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visit(Expr.Literal expr) {
+        return expr;
+    }
+
+    // A fused node whose parts are rewritten goes back to the plain form.
+    @Override
+    public Expr visit(Expr.LocalCompareLocal expr) {
+        Expr comparison = rewrite(expr.comparison);
+        if (comparison == expr.comparison) return expr;
+        return comparison;
+    }
+
+    @Override
+    public Expr visit(Expr.LocalIncrement expr) {
+        Expr assign = rewrite(expr.assign);
+        if (assign == expr.assign) return expr;
+        return assign;
+    }
+
+    @Override
+    public Expr visit(Expr.LocalUpdate expr) {
+        Expr assign = rewrite(expr.assign);
+        if (assign == expr.assign) return expr;
+        return assign;
+    }
+
+    @Override
+    public Expr visit(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visit(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visit(Expr.Var expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visit(Stmt.Block stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visit(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visit(Stmt.Function stmt) {
+        List<Stmt> body = rewrite(stmt.body);
+        if (body == stmt.body) return stmt;
+        return new Stmt.Function(stmt.name, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visit(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenStmt = rewrite(stmt.thenStmt);
+        Stmt elseStmt = stmt.elseStmt == null ? null : rewrite(stmt.elseStmt);
+        if (condition == stmt.condition && thenStmt == stmt.thenStmt && elseStmt == stmt.elseStmt) return stmt;
+        return new Stmt.If(condition, thenStmt == null ? nothing() : thenStmt, elseStmt);
+    }
+
+    @Override
+    public Stmt visit(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewrite(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body == null ? nothing() : body);
+    }
+
+    @Override
+    public Stmt visit(Stmt.For stmt) {
+        Stmt initializer = stmt.initializer == null ? null : rewrite(stmt.initializer);
+        Expr condition = stmt.condition == null ? null : rewrite(stmt.condition);
+        Expr increment = stmt.increment == null ? null : rewrite(stmt.increment);
+        Stmt body = rewrite(stmt.body);
+        if (initializer == stmt.initializer && condition == stmt.condition
+                && increment == stmt.increment && body == stmt.body) return stmt;
+        return new Stmt.For(initializer, condition, increment, body == null ? nothing() : body);
+    }
+
+    @Override
+    public Stmt visit(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visit(Stmt.PrintVar stmt) {
+        Stmt print = rewrite(stmt.print);
+        if (print == stmt.print) return stmt;
+        return print;
+    }
+
+    @Override
+    public Stmt visit(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visit(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+}
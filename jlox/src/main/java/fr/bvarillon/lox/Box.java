@@ -0,0 +1,15 @@
+package fr.bvarillon.lox;
+
+/**
+ * Box
+ *
+ * A local captured by a closure. Its frame slot holds the box instead of the
+ * value, and every closure using it holds the same box as an upvalue.
+ */
+public class Box {
+    Object value;
+
+    Box(Object value){
+        this.value = value;
+    }
+}
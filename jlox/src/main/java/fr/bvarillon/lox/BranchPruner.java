@@ -0,0 +1,48 @@
+package fr.bvarillon.lox;
+
+import java.util.Arrays;
+
+/**
+ * BranchPruner
+ *
+ * Removes the branches and loops that constant conditions, as left by the
+ * ConstantFolder, never run, along with expression statements that are
+ * bare literals.
+ */
+public class BranchPruner extends AstRewriter {
+
+    @Override
+    public Stmt visit(Stmt.If stmt) {
+        Stmt.If rewritten = (Stmt.If)super.visit(stmt);
+        if (!(rewritten.condition instanceof Expr.Literal)) return rewritten;
+        if (Interpreter.isThruthy(((Expr.Literal)rewritten.condition).value)) return rewritten.thenStmt;
+        return rewritten.elseStmt;
+    }
+
+    @Override
+    public Stmt visit(Stmt.While stmt) {
+        Stmt.While rewritten = (Stmt.While)super.visit(stmt);
+        if (isFalse(rewritten.condition)) return null;
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visit(Stmt.For stmt) {
+        Stmt.For rewritten = (Stmt.For)super.visit(stmt);
+        if (rewritten.condition == null || !isFalse(rewritten.condition)) return rewritten;
+        // Only the initializer runs, in the loop's own scope.
+        if (rewritten.initializer == null) return null;
+        return new Stmt.Block(Arrays.asList(rewritten.initializer));
+    }
+
+    @Override
+    public Stmt visit(Stmt.Expression stmt) {
+        Stmt.Expression rewritten = (Stmt.Expression)super.visit(stmt);
+        if (rewritten.expression instanceof Expr.Literal) return null;
+        return rewritten;
+    }
+
+    private static boolean isFalse(Expr condition) {
+        return condition instanceof Expr.Literal && !Interpreter.isThruthy(((Expr.Literal)condition).value);
+    }
+}
@@ -0,0 +1,486 @@
+package fr.bvarillon.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import static fr.bvarillon.lox.OpCode.*;
+
+/**
+ * BytecodeCompiler
+ *
+ * Compiles the resolved AST into chunks for the VM. All the locals of a
+ * function live in its frame on the VM stack: slot 0 holds the callee, then
+ * come the parameters, then each block's locals, in declaration order. Locals
+ * are found by their symbol, as the Resolver's slots describe the layout of the
+ * tree-walkers' environments rather than of the stack. Locals captured by a
+ * nested function are reached through upvalues.
+ */
+public class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VM.Function function;
+        // Symbols of the locals, -1 for the callee's slot.
+        int[] symbols = new int[8];
+        final List<Boolean> captured = new ArrayList<>();
+        final List<int[]> upvalues = new ArrayList<>();
+        // Constant pool indexes of the values and global names already in
+        // the chunk, so each one is added once however often it is used.
+        final Map<Object,Integer> constants = new HashMap<>();
+        final Map<Integer,Integer> globals = new HashMap<>();
+
+        FunctionState(FunctionState enclosing, VM.Function function) {
+            this.enclosing = enclosing;
+            this.function = function;
+            addLocal(-1);
+        }
+
+        int localCount() {
+            return captured.size();
+        }
+
+        void addLocal(int symbol) {
+            int index = localCount();
+            if (index == symbols.length) symbols = Arrays.copyOf(symbols, index * 2);
+            symbols[index] = symbol;
+            captured.add(false);
+        }
+
+        // Innermost local with this name still in scope, or -1.
+        int resolveLocal(int symbol) {
+            for (int i = localCount() - 1; i >= 0; i--) {
+                if (symbols[i] == symbol) return i;
+            }
+            return -1;
+        }
+    }
+
+    // First local of each open block or function body.
+    private final Stack<Integer> scopes = new Stack<>();
+    private FunctionState current;
+    private Token lastToken;
+
+    VM.Function compile(List<Stmt> stmts) {
+        current = new FunctionState(null, new VM.Function("script", 0));
+        for (Stmt stmt : stmts) {
+            compile(stmt);
+        }
+        emit(NIL);
+        emit(RETURN);
+        current.function.chunk.seal();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visit(Expr.Literal expr) {
+        if (expr.value == null) emit(NIL);
+        else if (expr.value == Boolean.TRUE) emit(TRUE);
+        else if (expr.value == Boolean.FALSE) emit(FALSE);
+        else emitConstant(CONSTANT, expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        lastToken = expr.operator;
+        switch (expr.operator.type) {
+            case MINUS:         emit(SUBTRACT); break;
+            case STAR:          emit(MULTIPLY); break;
+            case SLASH:         emit(DIVIDE); break;
+            case PLUS:          emit(ADD); break;
+            case GREATER:       emit(GREATER); break;
+            case GREATER_EQUAL: emit(GREATER_EQUAL); break;
+            case LOWER:         emit(LESS); break;
+            case LOWER_EQUAL:   emit(LESS_EQUAL); break;
+            case BANG_EQUAL:    emit(NOT_EQUAL); break;
+            case EQUAL_EQUAL:   emit(EQUAL); break;
+            default:
+                emit(POP);
+                emit(POP);
+                emit(NIL);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.Unary expr) {
+        compile(expr.right);
+        lastToken = expr.operator;
+        switch (expr.operator.type) {
+            case MINUS: emit(NEGATE); break;
+            case BANG:  emit(NOT); break;
+            default:
+                emit(POP);
+                emit(NIL);
+        }
+        return null;
+    }
+
+    // Logical operators yield the truthiness of the deciding operand, not the
+    // operand itself, like the Interpreter.
+    @Override
+    public Void visit(Expr.Logical expr) {
+        compile(expr.left);
+        lastToken = expr.operator;
+        int shortCircuit = emitJump(JUMP_IF_FALSE);
+        if (expr.operator.type == TokenType.OR) {
+            emit(TRUE);
+            int end = emitJump(JUMP);
+            patchJump(shortCircuit);
+            compile(expr.right);
+            emit(NOT);
+            emit(NOT);
+            patchJump(end);
+        } else {
+            compile(expr.right);
+            emit(NOT);
+            emit(NOT);
+            int end = emitJump(JUMP);
+            patchJump(shortCircuit);
+            emit(FALSE);
+            patchJump(end);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.Var expr) {
+        lastToken = expr.name;
+        if (expr.global) {
+            emitGlobal(GET_GLOBAL, expr.name);
+            return null;
+        }
+        int index = current.resolveLocal(expr.name.symbol);
+        if (index >= 0) {
+            emitShort(GET_LOCAL, index);
+        } else {
+            emitShort(GET_UPVALUE, resolveUpvalue(current, expr.name.symbol));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.Assign expr) {
+        compile(expr.value);
+        lastToken = expr.name;
+        if (expr.global) {
+            emitGlobal(SET_GLOBAL, expr.name);
+            return null;
+        }
+        int index = current.resolveLocal(expr.name.symbol);
+        if (index >= 0) {
+            emitShort(SET_LOCAL, index);
+        } else {
+            emitShort(SET_UPVALUE, resolveUpvalue(current, expr.name.symbol));
+        }
+        return null;
+    }
+
+    // The VM keeps making the call: its calls are cheap enough that the
+    // guard would not pay off.
+    @Override
+    public Void visit(Expr.Inline expr) {
+        compile(expr.call);
+        return null;
+    }
+
+    // Fused nodes compile as the nodes they stand for: the VM would need
+    // superinstructions of its own.
+    @Override
+    public Void visit(Expr.LocalCompareLocal expr) {
+        compile(expr.comparison);
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.LocalIncrement expr) {
+        compile(expr.assign);
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.LocalUpdate expr) {
+        compile(expr.assign);
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        lastToken = expr.paren;
+        emit(CALL);
+        emit(expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.PrintVar stmt) {
+        compile(stmt.print);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(POP);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Var stmt) {
+        lastToken = stmt.name;
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(NIL);
+        }
+        declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Block stmt) {
+        beginScope(current.localCount());
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.If stmt) {
+        compile(stmt.condition);
+        int elseJump = emitJump(JUMP_IF_FALSE);
+        compile(stmt.thenStmt);
+        if (stmt.elseStmt == null) {
+            patchJump(elseJump);
+            return null;
+        }
+        int endJump = emitJump(JUMP);
+        patchJump(elseJump);
+        compile(stmt.elseStmt);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(JUMP_IF_FALSE);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.For stmt) {
+        beginScope(current.localCount());
+        if (stmt.initializer != null) compile(stmt.initializer);
+        int loopStart = current.function.chunk.count;
+        int exitJump = -1;
+        if (stmt.condition != null) {
+            compile(stmt.condition);
+            exitJump = emitJump(JUMP_IF_FALSE);
+        }
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(POP);
+        }
+        emitLoop(loopStart);
+        if (exitJump >= 0) patchJump(exitJump);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Function stmt) {
+        // A local function is declared before its body so it can refer to
+        // itself; its closure lands in that slot once created.
+        boolean global = scopes.isEmpty();
+        if (!global) current.addLocal(stmt.name.symbol);
+
+        FunctionState enclosing = current;
+        current = new FunctionState(enclosing, new VM.Function(stmt.name.lexeme, stmt.params.size()));
+        lastToken = stmt.name;
+
+        beginScope(1);
+        for (Token param : stmt.params) {
+            current.addLocal(param.symbol);
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emit(NIL);
+        emit(RETURN);
+        scopes.pop();
+
+        FunctionState function = current;
+        function.function.upvalueCount = function.upvalues.size();
+        function.function.chunk.seal();
+        current = enclosing;
+
+        lastToken = stmt.name;
+        emitConstant(CLOSURE, function.function);
+        for (int[] upvalue : function.upvalues) {
+            emit(upvalue[0]);
+            emit(upvalue[1] >> 8);
+            emit(upvalue[1]);
+        }
+        if (global) emitGlobal(DEFINE_GLOBAL, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Return stmt) {
+        lastToken = stmt.keyword;
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(NIL);
+        }
+        emit(RETURN);
+        return null;
+    }
+
+    // The value of a declaration is already on top of the stack: a local just
+    // stays there, a global is moved to its cell.
+    private void declare(Token name) {
+        if (scopes.isEmpty()) {
+            emitGlobal(DEFINE_GLOBAL, name);
+        } else {
+            current.addLocal(name.symbol);
+        }
+    }
+
+    private void beginScope(int base) {
+        scopes.push(base);
+    }
+
+    private void endScope() {
+        int base = scopes.pop();
+        for (int i = current.localCount() - 1; i >= base; i--) {
+            emit(current.captured.remove(i) ? CLOSE_UPVALUE : POP);
+        }
+    }
+
+    // The Resolver has already checked that the name is a local of some
+    // enclosing function.
+    private int resolveUpvalue(FunctionState function, int symbol) {
+        FunctionState enclosing = function.enclosing;
+        int index = enclosing.resolveLocal(symbol);
+        if (index >= 0) {
+            enclosing.captured.set(index, true);
+            return addUpvalue(function, 1, index);
+        }
+        return addUpvalue(function, 0, resolveUpvalue(enclosing, symbol));
+    }
+
+    private int addUpvalue(FunctionState function, int isLocal, int index) {
+        for (int i = 0; i < function.upvalues.size(); i++) {
+            int[] upvalue = function.upvalues.get(i);
+            if (upvalue[0] == isLocal && upvalue[1] == index) return i;
+        }
+        function.upvalues.add(new int[]{isLocal, index});
+        return function.upvalues.size() - 1;
+    }
+
+    private void emit(int b) {
+        current.function.chunk.write(b, lastToken);
+    }
+
+    private void emitShort(byte op, int operand) {
+        if (operand > 0xffff) {
+            Lox.error(lastToken, "Too many locals or upvalues in function.");
+        }
+        emitOperand(op, operand);
+    }
+
+    private void emitOperand(byte op, int operand) {
+        emit(op);
+        emit(operand >> 8);
+        emit(operand);
+    }
+
+    private void emitConstant(byte op, Object value) {
+        emitConstant(op, current.constants, value, value);
+    }
+
+    // Global names are keyed by symbol: each use has its own Token, but they
+    // all share the constant and so the VM's cell cache.
+    private void emitGlobal(byte op, Token name) {
+        emitConstant(op, current.globals, name.symbol, name);
+    }
+
+    private <K> void emitConstant(byte op, Map<K,Integer> pool, K key, Object value) {
+        Integer index = pool.get(key);
+        if (index == null) {
+            index = current.function.chunk.addConstant(value);
+            if (index > 0xffff) {
+                Lox.error(lastToken, "Too many constants in one chunk.");
+            }
+            pool.put(key, index);
+        }
+        emitOperand(op, index);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        emit(0xff);
+        emit(0xff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            Lox.error(lastToken, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte)(jump >> 8);
+        chunk.code[offset + 1] = (byte)jump;
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(LOOP);
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > 0xffff) {
+            Lox.error(lastToken, "Loop body too large.");
+        }
+        emit(offset >> 8);
+        emit(offset);
+    }
+}
@@ -0,0 +1,47 @@
+package fr.bvarillon.lox;
+
+import java.util.Arrays;
+
+/**
+ * Chunk
+ *
+ * A compiled function body: the bytecode, its constant pool and, for each
+ * byte, the token it was compiled from so runtime errors are reported
+ * exactly like the tree-walking Interpreter does.
+ */
+class Chunk {
+    byte[] code = new byte[16];
+    Token[] tokens = new Token[16];
+    int count = 0;
+
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+    // Inline caches for the global named by each constant, see VM.
+    Globals.Cell[] cells;
+
+    void write(int b, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+        code[count] = (byte)b;
+        tokens[count] = token;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+
+    // Called once compilation is done, trims the buffers to their final size.
+    void seal() {
+        code = Arrays.copyOf(code, count);
+        tokens = Arrays.copyOf(tokens, count);
+        constants = Arrays.copyOf(constants, constantCount);
+        cells = new Globals.Cell[constantCount];
+    }
+}
@@ -0,0 +1,647 @@
+package fr.bvarillon.lox;
+
+import java.util.List;
+
+/**
+ * ClosureCompiler
+ *
+ * Alternative engine that walks the resolved AST once and turns every node
+ * into a Java closure specialised for it: operators, variable kinds and
+ * statement shapes are decided at compile time, so running the program is
+ * only calls between pre-bound closures, with no visitor dispatch and no
+ * operator switch.
+ *
+ * Returns use the Interpreter's return slot, as the tree walker does: a
+ * return statement stores its value there and its closure returns true,
+ * which makes every enclosing statement return at once. Functions are
+ * LoxFunctions whose declaration holds the compiled body, so a tail call
+ * is left in the slot too and run by the LoxFunction trampoline.
+ */
+public class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>, Stmt.Visitor<ClosureCompiler.Exec> {
+
+    interface Eval {
+        Object eval(Environment env);
+    }
+
+    interface Exec {
+        // True when a return statement ran.
+        boolean exec(Environment env);
+    }
+
+    private final Interpreter interpreter;
+    // Number of enclosing blocks and functions, 0 for top-level code.
+    private int scopeDepth = 0;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    public void interpret(List<Stmt> stmts) {
+        try {
+            for (Exec exec : compile(stmts)) {
+                exec.exec(null);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    // Entry points for the tiered Interpreter, which hands over a function
+    // body or a loop once it has become hot.
+    Exec[] compileBody(Stmt.Function stmt) {
+        int enclosingDepth = scopeDepth;
+        scopeDepth = 1;
+        Exec[] body = compile(stmt.body);
+        scopeDepth = enclosingDepth;
+        return body;
+    }
+
+    Exec compileLoop(Stmt.While stmt) {
+        return compile(stmt);
+    }
+
+    Exec compileLoop(Stmt.For stmt) {
+        scopeDepth++;
+        Exec loop = loop(stmt);
+        scopeDepth--;
+        return loop;
+    }
+
+    Exec[] compile(List<Stmt> stmts) {
+        Exec[] execs = new Exec[stmts.size()];
+        for (int i = 0; i < execs.length; i++) {
+            execs[i] = compile(stmts.get(i));
+        }
+        return execs;
+    }
+
+    private Exec compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Eval compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Eval visit(Expr.Literal expr) {
+        Object value = expr.value;
+        return env -> value;
+    }
+
+    @Override
+    public Eval visit(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Eval visit(Expr.Binary expr) {
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        Token op = expr.operator;
+        if (expr.numeric) return numeric(op, left, right);
+
+        switch (op.type) {
+            case MINUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    Interpreter.checkNumberOperand(op, l, r);
+                    return (double)l - (double)r;
+                };
+            case STAR:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    Interpreter.checkNumberOperand(op, l, r);
+                    return (double)l * (double)r;
+                };
+            case SLASH:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    Interpreter.checkNumberOperand(op, l, r);
+                    return (double)l / (double)r;
+                };
+            case PLUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if (l instanceof Double && r instanceof Double) {
+                        return (double)l + (double)r;
+                    }
+                    if (Rope.isString(l) && Rope.isString(r)) {
+                        return Rope.concat(l, r);
+                    }
+                    throw new RuntimeError(op, "Operands must be two numbers or two strings.");
+                };
+            case GREATER:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    Interpreter.checkNumberOperand(op, l, r);
+                    return (double)l > (double)r;
+                };
+            case GREATER_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    Interpreter.checkNumberOperand(op, l, r);
+                    return (double)l >= (double)r;
+                };
+            case LOWER:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    Interpreter.checkNumberOperand(op, l, r);
+                    return (double)l < (double)r;
+                };
+            case LOWER_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    Interpreter.checkNumberOperand(op, l, r);
+                    return (double)l <= (double)r;
+                };
+            case BANG_EQUAL:
+                return env -> !Interpreter.isEqual(left.eval(env), right.eval(env));
+            case EQUAL_EQUAL:
+                return env -> Interpreter.isEqual(left.eval(env), right.eval(env));
+        }
+        return env -> {
+            left.eval(env);
+            right.eval(env);
+            return null;
+        };
+    }
+
+    // Operands the TypeInference proved to be numbers need no check.
+    private Eval numeric(Token op, Eval left, Eval right) {
+        switch (op.type) {
+            case MINUS: return env -> (double)left.eval(env) - (double)right.eval(env);
+            case STAR: return env -> (double)left.eval(env) * (double)right.eval(env);
+            case SLASH: return env -> (double)left.eval(env) / (double)right.eval(env);
+            case PLUS: return env -> (double)left.eval(env) + (double)right.eval(env);
+            case GREATER: return env -> (double)left.eval(env) > (double)right.eval(env);
+            case GREATER_EQUAL: return env -> (double)left.eval(env) >= (double)right.eval(env);
+            case LOWER: return env -> (double)left.eval(env) < (double)right.eval(env);
+            default: return env -> (double)left.eval(env) <= (double)right.eval(env);
+        }
+    }
+
+    @Override
+    public Eval visit(Expr.Unary expr) {
+        Eval right = compile(expr.right);
+        Token op = expr.operator;
+        if (expr.numeric) return env -> -(double)right.eval(env);
+
+        switch (op.type) {
+            case MINUS:
+                return env -> {
+                    Object r = right.eval(env);
+                    Interpreter.checkNumberOperand(op, r);
+                    return -(double)r;
+                };
+            case BANG:
+                return env -> !Interpreter.isThruthy(right.eval(env));
+        }
+        return env -> {
+            right.eval(env);
+            return null;
+        };
+    }
+
+    @Override
+    public Eval visit(Expr.Logical expr) {
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return env -> Interpreter.isThruthy(left.eval(env)) || Interpreter.isThruthy(right.eval(env));
+        }
+        return env -> Interpreter.isThruthy(left.eval(env)) && Interpreter.isThruthy(right.eval(env));
+    }
+
+    @Override
+    public Eval visit(Expr.Var expr) {
+        int slot = expr.slot;
+        int upvalue = expr.upvalue;
+        if (upvalue >= 0) return env -> env.upvalues[upvalue].value;
+        if (expr.boxed) return env -> env.boxAt(slot).value;
+        if (!expr.global) return env -> env.getAt(slot);
+        return new GlobalVar(interpreter.globals, expr.name);
+    }
+
+    @Override
+    public Eval visit(Expr.Assign expr) {
+        Eval value = compile(expr.value);
+        int slot = expr.slot;
+        int upvalue = expr.upvalue;
+        if (upvalue >= 0) {
+            return env -> env.upvalues[upvalue].value = value.eval(env);
+        }
+        if (expr.boxed) {
+            return env -> env.boxAt(slot).value = value.eval(env);
+        }
+        if (!expr.global) {
+            return env -> {
+                Object v = value.eval(env);
+                env.assignAt(slot, v);
+                return v;
+            };
+        }
+        return new GlobalAssign(interpreter.globals, expr.name, value);
+    }
+
+    // The inlined body only stands for the call while the callee is still
+    // the function it was taken from.
+    @Override
+    public Eval visit(Expr.Inline expr) {
+        Eval callee = compile(expr.call.callee);
+        Eval body = compile(expr.body);
+        // Reads the callee again, which is only a global lookup.
+        Eval call = compile(expr.call);
+        Stmt.Function function = expr.function;
+
+        return env -> {
+            Object c = callee.eval(env);
+            if (c instanceof LoxFunction && ((LoxFunction)c).declaredBy(function)) {
+                return body.eval(env);
+            }
+            return call.eval(env);
+        };
+    }
+
+    // Fused nodes become a single closure working on the frame's numbers,
+    // falling back to the closure of the plain form when an operand is not
+    // a number.
+    @Override
+    public Eval visit(Expr.LocalCompareLocal expr) {
+        Eval comparison = compile(expr.comparison);
+        int left = expr.left.slot;
+        int right = expr.right.slot;
+
+        switch (expr.comparison.operator.type) {
+            case GREATER:
+                return env -> {
+                    try {
+                        return env.getNumberAt(left) > env.getNumberAt(right);
+                    } catch (NotANumber operand) {
+                        return comparison.eval(env);
+                    }
+                };
+            case GREATER_EQUAL:
+                return env -> {
+                    try {
+                        return env.getNumberAt(left) >= env.getNumberAt(right);
+                    } catch (NotANumber operand) {
+                        return comparison.eval(env);
+                    }
+                };
+            case LOWER:
+                return env -> {
+                    try {
+                        return env.getNumberAt(left) < env.getNumberAt(right);
+                    } catch (NotANumber operand) {
+                        return comparison.eval(env);
+                    }
+                };
+            default:
+                return env -> {
+                    try {
+                        return env.getNumberAt(left) <= env.getNumberAt(right);
+                    } catch (NotANumber operand) {
+                        return comparison.eval(env);
+                    }
+                };
+        }
+    }
+
+    @Override
+    public Eval visit(Expr.LocalIncrement expr) {
+        Eval assign = compile(expr.assign);
+        int slot = expr.var.slot;
+        double delta = expr.delta;
+
+        return env -> {
+            double value;
+            try {
+                value = env.getNumberAt(slot) + delta;
+            } catch (NotANumber operand) {
+                return assign.eval(env);
+            }
+            env.assignNumberAt(slot, value);
+            return value;
+        };
+    }
+
+    @Override
+    public Eval visit(Expr.LocalUpdate expr) {
+        // Here the operator is already decided at compile time, so fusing
+        // would only save the read of the local.
+        return compile(expr.assign);
+    }
+
+    @Override
+    public Eval visit(Expr.Call expr) {
+        Eval callee = compile(expr.callee);
+        Eval[] args = new Eval[expr.arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        switch (args.length) {
+            case 0:
+                return env -> Interpreter.checkCall(paren, callee.eval(env), 0).call0(interpreter);
+            case 1: {
+                Eval a = args[0];
+                return env -> {
+                    Object c = callee.eval(env);
+                    Object va = a.eval(env);
+                    return Interpreter.checkCall(paren, c, 1).call1(interpreter, va);
+                };
+            }
+            case 2: {
+                Eval a = args[0], b = args[1];
+                return env -> {
+                    Object c = callee.eval(env);
+                    Object va = a.eval(env);
+                    Object vb = b.eval(env);
+                    return Interpreter.checkCall(paren, c, 2).call2(interpreter, va, vb);
+                };
+            }
+            case 3: {
+                Eval a = args[0], b = args[1], d = args[2];
+                return env -> {
+                    Object c = callee.eval(env);
+                    Object va = a.eval(env);
+                    Object vb = b.eval(env);
+                    Object vd = d.eval(env);
+                    return Interpreter.checkCall(paren, c, 3).call3(interpreter, va, vb, vd);
+                };
+            }
+            case 4: {
+                Eval a = args[0], b = args[1], d = args[2], e = args[3];
+                return env -> {
+                    Object c = callee.eval(env);
+                    Object va = a.eval(env);
+                    Object vb = b.eval(env);
+                    Object vd = d.eval(env);
+                    Object ve = e.eval(env);
+                    return Interpreter.checkCall(paren, c, 4).call4(interpreter, va, vb, vd, ve);
+                };
+            }
+            default:
+                return env -> {
+                    Object c = callee.eval(env);
+                    Object[] values = new Object[args.length];
+                    for (int i = 0; i < args.length; i++) {
+                        values[i] = args[i].eval(env);
+                    }
+                    return Interpreter.checkCall(paren, c, values.length).call(interpreter, values);
+                };
+        }
+    }
+
+    @Override
+    public Exec visit(Stmt.Print stmt) {
+        Eval value = compile(stmt.expression);
+        return env -> {
+            System.out.println(Interpreter.stringify(value.eval(env)));
+            return false;
+        };
+    }
+
+    @Override
+    public Exec visit(Stmt.PrintVar stmt) {
+        return compile(stmt.print);
+    }
+
+    @Override
+    public Exec visit(Stmt.Expression stmt) {
+        Eval value = compile(stmt.expression);
+        return env -> {
+            value.eval(env);
+            return false;
+        };
+    }
+
+    @Override
+    public Exec visit(Stmt.Var stmt) {
+        Eval initializer = stmt.initializer != null ? compile(stmt.initializer) : env -> null;
+
+        if (scopeDepth == 0) {
+            Globals globals = interpreter.globals;
+            int symbol = stmt.name.symbol;
+            return env -> {
+                globals.define(symbol, initializer.eval(env));
+                return false;
+            };
+        }
+        int slot = stmt.slot;
+        if (stmt.boxed) {
+            return env -> {
+                env.define(slot, new Box(initializer.eval(env)));
+                return false;
+            };
+        }
+        return env -> {
+            env.define(slot, initializer.eval(env));
+            return false;
+        };
+    }
+
+    @Override
+    public Exec visit(Stmt.Block stmt) {
+        scopeDepth++;
+        Exec[] body = compile(stmt.statements);
+        scopeDepth--;
+        int frameSize = stmt.frameSize;
+
+        if (frameSize == 0) {
+            // Any locals of the block live in the current frame.
+            return env -> run(body, env);
+        }
+        return env -> run(body, new Environment(Environment.NO_UPVALUES, frameSize));
+    }
+
+    @Override
+    public Exec visit(Stmt.If stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec thenStmt = compile(stmt.thenStmt);
+
+        if (stmt.elseStmt == null) {
+            return env -> Interpreter.isThruthy(condition.eval(env)) && thenStmt.exec(env);
+        }
+        Exec elseStmt = compile(stmt.elseStmt);
+        return env -> Interpreter.isThruthy(condition.eval(env)) ? thenStmt.exec(env) : elseStmt.exec(env);
+    }
+
+    @Override
+    public Exec visit(Stmt.While stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec body = compile(stmt.body);
+        return env -> {
+            while (Interpreter.isThruthy(condition.eval(env))) {
+                if (body.exec(env)) return true;
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Exec visit(Stmt.For stmt) {
+        scopeDepth++;
+        Exec initializer = stmt.initializer != null ? compile(stmt.initializer) : env -> false;
+        Exec loop = loop(stmt);
+        scopeDepth--;
+        int frameSize = stmt.frameSize;
+
+        if (frameSize == 0) {
+            return env -> {
+                initializer.exec(env);
+                return loop.exec(env);
+            };
+        }
+        return env -> {
+            Environment inner = new Environment(Environment.NO_UPVALUES, frameSize);
+            initializer.exec(inner);
+            return loop.exec(inner);
+        };
+    }
+
+    // A for loop without its initializer.
+    private Exec loop(Stmt.For stmt) {
+        Eval condition = stmt.condition != null ? compile(stmt.condition) : env -> Boolean.TRUE;
+        Exec body = compile(stmt.body);
+        Eval increment = stmt.increment != null ? compile(stmt.increment) : env -> null;
+        return env -> {
+            while (Interpreter.isThruthy(condition.eval(env))) {
+                if (body.exec(env)) return true;
+                increment.eval(env);
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Exec visit(Stmt.Function stmt) {
+        scopeDepth++;
+        stmt.compiled = compile(stmt.body);
+        scopeDepth--;
+        int[] captures = stmt.captures;
+
+        if (scopeDepth == 0) {
+            Globals globals = interpreter.globals;
+            int symbol = stmt.name.symbol;
+            return env -> {
+                globals.define(symbol, new LoxFunction(stmt, Environment.NO_UPVALUES));
+                return false;
+            };
+        }
+        int slot = stmt.slot;
+        if (stmt.boxed) {
+            return env -> {
+                Box box = new Box(null);
+                env.define(slot, box);
+                box.value = new LoxFunction(stmt, Environment.capture(env, captures));
+                return false;
+            };
+        }
+        return env -> {
+            env.define(slot, new LoxFunction(stmt, Environment.capture(env, captures)));
+            return false;
+        };
+    }
+
+    @Override
+    public Exec visit(Stmt.Return stmt) {
+        if (stmt.value instanceof Expr.Call && ((Expr.Call)stmt.value).tail) {
+            return tailCall((Expr.Call)stmt.value);
+        }
+        Eval value = stmt.value != null ? compile(stmt.value) : env -> null;
+        return env -> {
+            interpreter.returnWith(value.eval(env));
+            return true;
+        };
+    }
+
+    // As in the tree walker, a tail call to a LoxFunction is not made here
+    // but left in the return slot, for the LoxFunction returning to run in
+    // place.
+    private Exec tailCall(Expr.Call call) {
+        Eval callee = compile(call.callee);
+        Eval[] args = new Eval[call.arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = compile(call.arguments.get(i));
+        }
+        Token paren = call.paren;
+
+        return env -> {
+            Object c = callee.eval(env);
+            if (c instanceof LoxFunction && ((LoxFunction)c).arity() == args.length) {
+                // The arguments go straight into the callee's frame.
+                LoxFunction function = (LoxFunction)c;
+                Environment frame = function.frame();
+                for (Eval arg : args) {
+                    frame.define(arg.eval(env));
+                }
+                interpreter.tailCall(function, frame);
+                return true;
+            }
+            Object[] values = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                values[i] = args[i].eval(env);
+            }
+            interpreter.returnWith(Interpreter.checkCall(paren, c, values.length).call(interpreter, values));
+            return true;
+        };
+    }
+
+    // Runs statements until one returns.
+    static boolean run(Exec[] body, Environment env) {
+        for (Exec exec : body) {
+            if (exec.exec(env)) return true;
+        }
+        return false;
+    }
+
+    private static class GlobalVar implements Eval {
+        private final Globals globals;
+        private final Token name;
+        private Globals.Cell cell;
+
+        GlobalVar(Globals globals, Token name) {
+            this.globals = globals;
+            this.name = name;
+        }
+
+        @Override
+        public Object eval(Environment env) {
+            if (cell == null) cell = globals.lookup(name);
+            return cell.value;
+        }
+    }
+
+    private static class GlobalAssign implements Eval {
+        private final Globals globals;
+        private final Token name;
+        private final Eval value;
+        private Globals.Cell cell;
+
+        GlobalAssign(Globals globals, Token name, Eval value) {
+            this.globals = globals;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public Object eval(Environment env) {
+            Object v = value.eval(env);
+            if (cell == null) cell = globals.lookupForAssign(name);
+            cell.value = v;
+            return v;
+        }
+    }
+}
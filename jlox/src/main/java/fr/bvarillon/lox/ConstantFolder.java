@@ -0,0 +1,62 @@
+package fr.bvarillon.lox;
+
+/**
+ * ConstantFolder
+ *
+ * Computes operators whose operands are literals once, at compile time, with
+ * the Interpreter's own semantics. An operation that would fail is left
+ * alone, for the error to be raised when it runs.
+ */
+public class ConstantFolder extends AstRewriter {
+
+    @Override
+    public Expr visit(Expr.Binary expr) {
+        Expr.Binary binary = (Expr.Binary)super.visit(expr);
+        if (binary.left instanceof Expr.Literal && binary.right instanceof Expr.Literal) {
+            try {
+                return new Expr.Literal(Interpreter.binary(binary.operator,
+                        ((Expr.Literal)binary.left).value, ((Expr.Literal)binary.right).value));
+            } catch (RuntimeError error) {
+                return binary;
+            }
+        }
+        return binary;
+    }
+
+    @Override
+    public Expr visit(Expr.Unary expr) {
+        Expr.Unary unary = (Expr.Unary)super.visit(expr);
+        if (unary.right instanceof Expr.Literal) {
+            try {
+                return new Expr.Literal(Interpreter.unary(unary.operator, ((Expr.Literal)unary.right).value));
+            } catch (RuntimeError error) {
+                return unary;
+            }
+        }
+        return unary;
+    }
+
+    // Logical operators yield the truthiness of the deciding operand, so a
+    // literal left operand that does not decide still needs the right one.
+    @Override
+    public Expr visit(Expr.Logical expr) {
+        Expr.Logical logical = (Expr.Logical)super.visit(expr);
+        if (!(logical.left instanceof Expr.Literal)) return logical;
+
+        boolean left = Interpreter.isThruthy(((Expr.Literal)logical.left).value);
+        if (logical.operator.type == TokenType.OR ? left : !left) {
+            return new Expr.Literal(left);
+        }
+        if (logical.right instanceof Expr.Literal) {
+            return new Expr.Literal(Interpreter.isThruthy(((Expr.Literal)logical.right).value));
+        }
+        return logical;
+    }
+
+    @Override
+    public Expr visit(Expr.Grouping expr) {
+        Expr.Grouping grouping = (Expr.Grouping)super.visit(expr);
+        if (grouping.expression instanceof Expr.Literal) return grouping.expression;
+        return grouping;
+    }
+}
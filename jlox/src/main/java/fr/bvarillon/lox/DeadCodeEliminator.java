@@ -0,0 +1,37 @@
+package fr.bvarillon.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DeadCodeEliminator
+ *
+ * Drops the statements following one that always returns.
+ */
+public class DeadCodeEliminator extends AstRewriter {
+
+    @Override
+    List<Stmt> rewrite(List<Stmt> stmts) {
+        List<Stmt> rewritten = super.rewrite(stmts);
+        for (int i = 0; i < rewritten.size() - 1; i++) {
+            if (returns(rewritten.get(i))) return new ArrayList<>(rewritten.subList(0, i + 1));
+        }
+        return rewritten;
+    }
+
+    // Whether running the statement always ends in a return. Statement lists
+    // are already cut after their first returning statement, so a block
+    // returns when its last statement does.
+    private static boolean returns(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) return true;
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)stmt).statements;
+            return !statements.isEmpty() && returns(statements.get(statements.size() - 1));
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return ifStmt.elseStmt != null && returns(ifStmt.thenStmt) && returns(ifStmt.elseStmt);
+        }
+        return false;
+    }
+}
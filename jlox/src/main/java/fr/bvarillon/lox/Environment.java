@@ -1,64 +1,93 @@
 package fr.bvarillon.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Environment
+ *
+ * The frame of a function call, or of an outermost top-level block: a
+ * fixed-size array holding the locals of the function and of all the blocks
+ * in it. The size and the slot of every local are computed by the Resolver,
+ * so reads and writes are plain array accesses. Variables of enclosing
+ * functions are not reached through a chain of environments but through
+ * the boxes the closure captured, in upvalues.
+ *
+ * A slot can also hold an unboxed number: its value is then UNBOXED and the
+ * number lives in the parallel numbers array, allocated on first use. Such
+ * numbers are only boxed when read through the generic getAt.
  */
 public class Environment {
-    final Environment enclosing;
-    private final Map<String,Object> values = new HashMap<>(); 
+    private static final Object UNBOXED = new Object();
+    static final Box[] NO_UPVALUES = {};
 
-    Environment(){
-        enclosing = null;
-    }
+    final Box[] upvalues;
+    private final Object[] values;
+    private double[] numbers = null;
+    private int count = 0;
 
-    Environment(Environment enclosing){
-        this.enclosing = enclosing;
+    Environment(Box[] upvalues, int size){
+        this.upvalues = upvalues;
+        this.values = new Object[size];
     }
 
-    Environment ancestor(int depth){
-        Environment env = this;
-        for (int i =0; i<depth; i++){
-            env = env.enclosing;
+    // Upvalues of a closure created in this frame, top-level code having
+    // none: a capture c >= 0 is the boxed local in slot c, and c < 0 is the
+    // upvalue -1 - c of this frame's own function.
+    static Box[] capture(Environment frame, int[] captures) {
+        if (captures.length == 0) return NO_UPVALUES;
+        Box[] boxes = new Box[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int capture = captures[i];
+            boxes[i] = capture >= 0 ? (Box)frame.values[capture] : frame.upvalues[-1 - capture];
         }
-        return env;
+        return boxes;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    // Arguments are bound in order, so binding one is just filling the next
+    // free slot.
+    void define(Object value) {
+        values[count++] = value;
     }
 
-    Object get(Token name) {
-        if(values.containsKey(name.lexeme)){
-            return values.get(name.lexeme);
-        }
+    // Declarations go to the slot the Resolver gave them: blocks flattened
+    // into this frame reuse slots, so they are not filled in order.
+    void define(int slot, Object value) {
+        values[slot] = value;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    void defineNumber(int slot, double value) {
+        if (numbers == null) numbers = new double[values.length];
+        numbers[slot] = value;
+        values[slot] = UNBOXED;
+    }
 
-        throw new RuntimeError(name, "Undefine variable '" + name.lexeme + "'.");
+    // Moves a captured parameter into a box.
+    void box(int slot) {
+        values[slot] = new Box(values[slot]);
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Box boxAt(int slot) {
+        return (Box)values[slot];
     }
 
-    void assign(Token name, Object value){
-        if(values.containsKey(name.lexeme)){
-            values.put(name.lexeme, value);
-            return;
-        }
+    Object getAt(int slot) {
+        Object value = values[slot];
+        if (value == UNBOXED) return numbers[slot];
+        return value;
+    }
 
-        if (enclosing != null){
-            enclosing.assign(name, value);
-            return;
-        }
+    double getNumberAt(int slot) {
+        Object value = values[slot];
+        if (value == UNBOXED) return numbers[slot];
+        if (value instanceof Double) return (double)value;
+        throw new NotANumber(value);
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    void assignAt(int slot, Object value) {
+        values[slot] = value;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme,value);
+    void assignNumberAt(int slot, double value) {
+        if (numbers == null) numbers = new double[values.length];
+        numbers[slot] = value;
+        values[slot] = UNBOXED;
     }
 }
@@ -8,7 +8,11 @@ abstract class Expr {
     R visit(Binary EXPR);
     R visit(Call EXPR);
     R visit(Grouping EXPR);
+    R visit(Inline EXPR);
     R visit(Literal EXPR);
+    R visit(LocalCompareLocal EXPR);
+    R visit(LocalIncrement EXPR);
+    R visit(LocalUpdate EXPR);
     R visit(Logical EXPR);
     R visit(Unary EXPR);
     R visit(Var EXPR);
@@ -28,6 +32,11 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int slot;
+        int upvalue = -1;
+        boolean boxed;
+        boolean global = true;
+        Globals.Cell cell;
     }
 
 // Class Binary
@@ -46,6 +55,8 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        Specialization specialization = Specialization.UNINITIALIZED;
+        boolean numeric;
     }
 
 // Class Call
@@ -64,6 +75,7 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        boolean tail;
     }
 
 // Class Grouping
@@ -80,6 +92,24 @@ abstract class Expr {
         final Expr expression;
     }
 
+// Class Inline
+    static class Inline extends Expr {
+    Inline(Expr.Call call, Stmt.Function function, Expr body) {
+        this.call = call;
+        this.function = function;
+        this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+        final Expr.Call call;
+        final Stmt.Function function;
+        final Expr body;
+    }
+
 // Class Literal
     static class Literal extends Expr {
     Literal(Object value) {
@@ -94,6 +124,62 @@ abstract class Expr {
         final Object value;
     }
 
+// Class LocalCompareLocal
+    static class LocalCompareLocal extends Expr {
+    LocalCompareLocal(Expr.Binary comparison, Expr.Var left, Expr.Var right) {
+        this.comparison = comparison;
+        this.left = left;
+        this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+        final Expr.Binary comparison;
+        final Expr.Var left;
+        final Expr.Var right;
+    }
+
+// Class LocalIncrement
+    static class LocalIncrement extends Expr {
+    LocalIncrement(Expr.Assign assign, Expr.Var var, double delta) {
+        this.assign = assign;
+        this.var = var;
+        this.delta = delta;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+        final Expr.Assign assign;
+        final Expr.Var var;
+        final double delta;
+    }
+
+// Class LocalUpdate
+    static class LocalUpdate extends Expr {
+    LocalUpdate(Expr.Assign assign, Expr.Var var, Token operator, Expr operand) {
+        this.assign = assign;
+        this.var = var;
+        this.operator = operator;
+        this.operand = operand;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+        final Expr.Assign assign;
+        final Expr.Var var;
+        final Token operator;
+        final Expr operand;
+    }
+
 // Class Logical
     static class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
@@ -110,6 +196,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        Specialization specialization = Specialization.UNINITIALIZED;
     }
 
 // Class Unary
@@ -126,6 +213,8 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        Specialization specialization = Specialization.UNINITIALIZED;
+        boolean numeric;
     }
 
 // Class Var
@@ -140,6 +229,11 @@ abstract class Expr {
     }
 
         final Token name;
+        int slot;
+        int upvalue = -1;
+        boolean boxed;
+        boolean global = true;
+        Globals.Cell cell;
     }
 
 
@@ -0,0 +1,71 @@
+package fr.bvarillon.lox;
+
+/**
+ * Fuser
+ *
+ * Replaces the shapes that dominate loops by superinstructions, nodes doing
+ * the whole operation in one dispatch and keeping numbers unboxed:
+ * incrementing a local by a constant, updating a local with an arithmetic
+ * operator, comparing two locals, and printing a variable.
+ *
+ * Only locals living in the frame itself are fused, as told by the Var
+ * nodes, which the passes never rebuild and so still carry what the
+ * Resolver found; no pass makes a local captured. Each fused node keeps
+ * the node it stands for, which the engines fall back to when an operand
+ * is not a number, and which the Resolver resolves.
+ */
+public class Fuser extends AstRewriter {
+
+    @Override
+    public Expr visit(Expr.Assign expr) {
+        Expr.Assign assign = (Expr.Assign)super.visit(expr);
+        if (!(assign.value instanceof Expr.Binary)) return assign;
+        Expr.Binary binary = (Expr.Binary)assign.value;
+        if (!isFrameLocal(binary.left) || ((Expr.Var)binary.left).name.symbol != assign.name.symbol) {
+            return assign;
+        }
+        Expr.Var var = (Expr.Var)binary.left;
+
+        switch (binary.operator.type) {
+            case PLUS:
+            case MINUS:
+                if (binary.right instanceof Expr.Literal && ((Expr.Literal)binary.right).value instanceof Double) {
+                    double delta = (double)((Expr.Literal)binary.right).value;
+                    return new Expr.LocalIncrement(assign, var, binary.operator.type == TokenType.PLUS ? delta : -delta);
+                }
+                return new Expr.LocalUpdate(assign, var, binary.operator, binary.right);
+            case STAR:
+            case SLASH:
+                return new Expr.LocalUpdate(assign, var, binary.operator, binary.right);
+        }
+        return assign;
+    }
+
+    @Override
+    public Expr visit(Expr.Binary expr) {
+        Expr.Binary binary = (Expr.Binary)super.visit(expr);
+        switch (binary.operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LOWER:
+            case LOWER_EQUAL:
+                if (isFrameLocal(binary.left) && isFrameLocal(binary.right)) {
+                    return new Expr.LocalCompareLocal(binary, (Expr.Var)binary.left, (Expr.Var)binary.right);
+                }
+        }
+        return binary;
+    }
+
+    @Override
+    public Stmt visit(Stmt.Print stmt) {
+        Stmt.Print print = (Stmt.Print)super.visit(stmt);
+        if (print.expression instanceof Expr.Var) return new Stmt.PrintVar(print, (Expr.Var)print.expression);
+        return print;
+    }
+
+    private static boolean isFrameLocal(Expr expr) {
+        if (!(expr instanceof Expr.Var)) return false;
+        Expr.Var var = (Expr.Var)expr;
+        return !var.global && var.upvalue < 0 && !var.boxed;
+    }
+}
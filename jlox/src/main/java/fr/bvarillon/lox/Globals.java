@@ -0,0 +1,46 @@
+package fr.bvarillon.lox;
+
+import java.util.Arrays;
+
+/**
+ * Globals
+ *
+ * Top-level variables are late bound, so they are still looked up by name,
+ * but each one lives in a Cell that never changes once created. Nodes can
+ * therefore cache the cell after the first successful lookup. Names are
+ * looked up by their id in Symbols, which indexes the cells directly.
+ */
+public class Globals {
+    static class Cell {
+        Object value;
+    }
+
+    private Cell[] cells = new Cell[64];
+
+    void define(int symbol, Object value) {
+        if (symbol >= cells.length) cells = Arrays.copyOf(cells, Math.max(cells.length * 2, Symbols.count()));
+        Cell cell = cells[symbol];
+        if (cell == null) {
+            cell = cells[symbol] = new Cell();
+        }
+        cell.value = value;
+    }
+
+    Cell lookup(Token name) {
+        Cell cell = find(name.symbol);
+        if (cell != null) return cell;
+
+        throw new RuntimeError(name, "Undefine variable '" + name.lexeme + "'.");
+    }
+
+    Cell lookupForAssign(Token name) {
+        Cell cell = find(name.symbol);
+        if (cell != null) return cell;
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    private Cell find(int symbol) {
+        return symbol < cells.length ? cells[symbol] : null;
+    }
+}
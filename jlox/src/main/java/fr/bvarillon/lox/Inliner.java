@@ -0,0 +1,113 @@
+package fr.bvarillon.lox;
+
+import java.util.List;
+
+/**
+ * Inliner
+ *
+ * Replaces calls to small global functions by their body. A candidate is a
+ * top-level function that only returns an expression of its parameters,
+ * and that the program never redeclares or assigns. Its arguments at a call
+ * site must be literals or locals, which the body, making no call, cannot
+ * change: substituting them for the parameters then gives the same result.
+ *
+ * Globals are late bound, so each inlined call keeps a guard that makes the
+ * real call when the global no longer holds the inlined function.
+ *
+ * Names are compared by their id in Symbols, which also indexes the
+ * candidates.
+ */
+public class Inliner extends AstRewriter {
+    static final int MAX_BODY_SIZE = 16;
+
+    private Stmt.Function[] candidates = new Stmt.Function[0];
+
+    @Override
+    public List<Stmt> run(List<Stmt> stmts) {
+        // The statements are scanned, so all their names are interned.
+        candidates = new Stmt.Function[Symbols.count()];
+        boolean[] declared = new boolean[candidates.length];
+        boolean[] rebound = new boolean[candidates.length];
+        for (Stmt stmt : stmts) {
+            if (stmt instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function)stmt;
+                int symbol = function.name.symbol;
+                if (declared[symbol]) rebound[symbol] = true;
+                else if (isSmall(function)) candidates[symbol] = function;
+                declared[symbol] = true;
+            } else if (stmt instanceof Stmt.Var) {
+                rebound[((Stmt.Var)stmt).name.symbol] = true;
+            }
+        }
+        new AstRewriter() {
+            @Override
+            public Expr visit(Expr.Assign expr) {
+                if (expr.global) rebound[expr.name.symbol] = true;
+                return super.visit(expr);
+            }
+        }.run(stmts);
+
+        boolean any = false;
+        for (int symbol = 0; symbol < candidates.length; symbol++) {
+            if (rebound[symbol]) candidates[symbol] = null;
+            else if (candidates[symbol] != null) any = true;
+        }
+
+        if (!any) return stmts;
+        return super.run(stmts);
+    }
+
+    @Override
+    public Expr visit(Expr.Call expr) {
+        Expr.Call call = (Expr.Call)super.visit(expr);
+        if (!(call.callee instanceof Expr.Var)) return call;
+        Expr.Var callee = (Expr.Var)call.callee;
+        Stmt.Function function = callee.global ? candidates[callee.name.symbol] : null;
+        if (function == null || function.params.size() != call.arguments.size()) return call;
+
+        for (Expr argument : call.arguments) {
+            if (!(argument instanceof Expr.Literal
+                    || argument instanceof Expr.Var && !((Expr.Var)argument).global)) {
+                return call;
+            }
+        }
+
+        // The variables of the body are all parameters.
+        Expr body = new AstRewriter() {
+            @Override
+            public Expr visit(Expr.Var expr) {
+                for (int i = function.params.size() - 1; i >= 0; i--) {
+                    if (function.params.get(i).symbol == expr.name.symbol) return call.arguments.get(i);
+                }
+                return expr;
+            }
+        }.rewrite(((Stmt.Return)function.body.get(0)).value);
+        return new Expr.Inline(call, function, body);
+    }
+
+    // A single return of an expression made of parameters, literals and
+    // operators.
+    private static boolean isSmall(Stmt.Function function) {
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) return false;
+        Expr value = ((Stmt.Return)function.body.get(0)).value;
+        return value != null && size(value) <= MAX_BODY_SIZE;
+    }
+
+    // Number of nodes of an expression, or more than MAX_BODY_SIZE when it
+    // is not made of parameters, literals and operators only.
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Literal) return 1;
+        if (expr instanceof Expr.Var) return ((Expr.Var)expr).global ? MAX_BODY_SIZE + 1 : 1;
+        if (expr instanceof Expr.Grouping) return 1 + size(((Expr.Grouping)expr).expression);
+        if (expr instanceof Expr.Unary) return 1 + size(((Expr.Unary)expr).right);
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return 1 + size(binary.left) + size(binary.right);
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return 1 + size(logical.left) + size(logical.right);
+        }
+        return MAX_BODY_SIZE + 1;
+    }
+}
@@ -1,35 +1,57 @@
 package fr.bvarillon.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Interpreter
  */
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr,Integer> locals = new HashMap<>();
+    // Calls and loop iterations after which code is handed to the tier.
+    static final int HOT_CALLS = 1000;
+    static final int HOT_BACK_EDGES = 10000;
+
+    final Globals globals = new Globals();
+    // null while running top-level code, where declarations are globals.
+    private Environment environment = null;
+    // Compiler for hot code, null unless tiering is enabled.
+    private ClosureCompiler tier = null;
+    // Frame-level return slot: a return statement stores its value here and
+    // raises the flag, enclosing blocks and loops stop as soon as they see
+    // it, and LoxFunction.call collects the value. Code compiled by the
+    // ClosureCompiler returns through it too.
+    private boolean returning = false;
+    private Object returnValue = null;
+    // A tail call to a LoxFunction is not made by the return statement but
+    // left here, for the LoxFunction.call that is returning to run in place.
+    private LoxFunction tailCallee = null;
+    private Environment tailFrame = null;
 
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
+        globals.define(Symbols.intern("clock"), new LoxCallable() {
             @Override
             public int arity(){return 0;}
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments){
+            public Object call0(Interpreter interpreter){
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
+            @Override
+            public Object call(Interpreter interpreter, Object[] arguments){
+                return call0(interpreter);
+            }
+
             @Override
             public String toString(){return "<native fun>";}
         });
     }
 
+    void enableTiering(ClosureCompiler compiler) {
+        tier = compiler;
+    }
+
     public void interpret(List<Stmt> stmts) {
         try {
             for(Stmt stmt : stmts){
@@ -48,10 +70,6 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         stmt.accept(this);
     }
 
-    public void resolve(Expr expr, int depth){
-        locals.put(expr, depth);
-    }
-
     @Override
     public Object visit(Expr.Literal expr){
         return expr.value;
@@ -59,39 +77,214 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visit(Expr.Binary expr){
+        if (expr.numeric) {
+            switch(expr.operator.type) {
+                case GREATER: return number(expr.left) > number(expr.right);
+                case GREATER_EQUAL: return number(expr.left) >= number(expr.right);
+                case LOWER: return number(expr.left) < number(expr.right);
+                case LOWER_EQUAL: return number(expr.left) <= number(expr.right);
+                default: return proven(expr);
+            }
+        }
+
+        switch(expr.specialization) {
+            case NUMBER_ADD:
+            case NUMBER_SUBTRACT:
+            case NUMBER_MULTIPLY:
+            case NUMBER_DIVIDE:
+                try {
+                    return arithmetic(expr);
+                } catch (NotANumber result) {
+                    return result.value;
+                }
+            case NUMBER_GREATER:
+            case NUMBER_GREATER_EQUAL:
+            case NUMBER_LESS:
+            case NUMBER_LESS_EQUAL:
+                return comparison(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        switch(expr.specialization) {
+            case STRING_ADD:
+                if (Rope.isString(left) && Rope.isString(right)) return Rope.concat(left, right);
+                break;
+            case GENERIC:
+                return binary(expr.operator, left, right);
+        }
+
+        expr.specialization = specialize(expr, left, right);
+        return binary(expr.operator, left, right);
+    }
+
+    // Unboxed path for nodes specialized on numbers: operands are evaluated
+    // as doubles, and only a result leaving this path gets boxed. When an
+    // operand is not a number the node is generalized, and a result that
+    // is not a number either travels up in a NotANumber.
+    private double number(Expr expr) {
+        if (expr instanceof Expr.Var) {
+            Expr.Var var = (Expr.Var)expr;
+            if (!var.global && !var.boxed) return environment.getNumberAt(var.slot);
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.numeric && !isComparison(binary.operator.type)) return proven(binary);
+            if (isArithmetic(binary.specialization)) return arithmetic(binary);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.numeric) return -number(unary.right);
+            if (unary.specialization == Specialization.NUMBER_NEGATE) {
+                try {
+                    return -number(unary.right);
+                } catch (NotANumber operand) {
+                    unary.specialization = Specialization.GENERIC;
+                    return unbox(unary(unary.operator, operand.value));
+                }
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return number(((Expr.Grouping)expr).expression);
+        }
+        return unbox(evaluate(expr));
+    }
 
+    // Operands the TypeInference proved to be numbers: no check, and no
+    // feedback to record.
+    private double proven(Expr.Binary expr) {
+        double left = number(expr.left);
+        double right = number(expr.right);
         switch(expr.operator.type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            default: return left / right;
+        }
+    }
+
+    private double arithmetic(Expr.Binary expr) {
+        // Read once: a recursive evaluation of this same node may generalize it.
+        Specialization specialization = expr.specialization;
+        double left;
+        try {
+            left = number(expr.left);
+        } catch (NotANumber operand) {
+            return unbox(generalize(expr, operand.value, evaluate(expr.right)));
+        }
+        double right;
+        try {
+            right = number(expr.right);
+        } catch (NotANumber operand) {
+            return unbox(generalize(expr, left, operand.value));
+        }
+
+        switch(specialization) {
+            case NUMBER_ADD: return left + right;
+            case NUMBER_SUBTRACT: return left - right;
+            case NUMBER_MULTIPLY: return left * right;
+            default: return left / right;
+        }
+    }
+
+    private Object comparison(Expr.Binary expr) {
+        Specialization specialization = expr.specialization;
+        double left;
+        try {
+            left = number(expr.left);
+        } catch (NotANumber operand) {
+            return generalize(expr, operand.value, evaluate(expr.right));
+        }
+        double right;
+        try {
+            right = number(expr.right);
+        } catch (NotANumber operand) {
+            return generalize(expr, left, operand.value);
+        }
+
+        switch(specialization) {
+            case NUMBER_GREATER: return left > right;
+            case NUMBER_GREATER_EQUAL: return left >= right;
+            case NUMBER_LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    private Object generalize(Expr.Binary expr, Object left, Object right) {
+        expr.specialization = Specialization.GENERIC;
+        return binary(expr.operator, left, right);
+    }
+
+    private static double unbox(Object value) {
+        if (value instanceof Double) return (double)value;
+        throw new NotANumber(value);
+    }
+
+    private static boolean isArithmetic(Specialization specialization) {
+        switch(specialization) {
+            case NUMBER_ADD:
+            case NUMBER_SUBTRACT:
+            case NUMBER_MULTIPLY:
+            case NUMBER_DIVIDE:
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isComparison(TokenType type) {
+        switch(type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LOWER:
+            case LOWER_EQUAL:
+                return true;
+        }
+        return false;
+    }
+
+    // Whether the value of expr is expected to be a number, so it is worth
+    // computing and storing it unboxed.
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return binary.numeric ? !isComparison(binary.operator.type) : isArithmetic(binary.specialization);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return unary.numeric || unary.specialization == Specialization.NUMBER_NEGATE;
+        }
+        if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Double;
+        return false;
+    }
+
+    static Object binary(Token operator, Object left, Object right){
+        switch(operator.type) {
             case MINUS:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left - (double)right;
             case STAR:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left * (double)right;
             case SLASH:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left / (double)right;
             case PLUS:
-                if (left instanceof String && right instanceof String) {
-                return (String)left + (String)right;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
                 }
                 if (left instanceof Double && right instanceof Double) {
                 return (double)left + (double)right;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case GREATER:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left >= (double)right;
             case LOWER:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left < (double)right;
             case LOWER_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double)left <= (double)right;
             case BANG_EQUAL:
                 return !isEqual(left,right);
@@ -108,11 +301,29 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visit(Expr.Unary expr){
+        if (expr.numeric) return -number(expr.right);
+
         Object right = evaluate(expr.right);
 
-        switch(expr.operator.type){
+        switch(expr.specialization) {
+            case NUMBER_NEGATE:
+                if (right instanceof Double) return -(double)right;
+                break;
+            case BOOLEAN_NOT:
+                if (right instanceof Boolean) return !(boolean)right;
+                break;
+            case GENERIC:
+                return unary(expr.operator, right);
+        }
+
+        expr.specialization = specialize(expr, right);
+        return unary(expr.operator, right);
+    }
+
+    static Object unary(Token operator, Object right){
+        switch(operator.type){
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return -(double)right;
             case BANG:
                 return !isThruthy(right);
@@ -124,6 +335,28 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visit(Expr.Logical expr) {
         Object left = evaluate(expr.left);
 
+        switch(expr.specialization) {
+            case BOOLEAN_OR:
+                if (left instanceof Boolean) {
+                    if ((boolean)left) return true;
+                    return isThruthy(evaluate(expr.right));
+                }
+                break;
+            case BOOLEAN_AND:
+                if (left instanceof Boolean) {
+                    if (!(boolean)left) return false;
+                    return isThruthy(evaluate(expr.right));
+                }
+                break;
+            case GENERIC:
+                return logical(expr, left);
+        }
+
+        expr.specialization = specialize(expr, left);
+        return logical(expr, left);
+    }
+
+    private Object logical(Expr.Logical expr, Object left) {
         if (expr.operator.type == TokenType.OR){
             if(isThruthy(left)) return isThruthy(left);
         } else {
@@ -135,38 +368,176 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visit(Expr.Var expr){
-        return lookupVariable(expr.name, expr);
+        if (!expr.global){
+            if (expr.upvalue >= 0) return environment.upvalues[expr.upvalue].value;
+            if (expr.boxed) return environment.boxAt(expr.slot).value;
+            return environment.getAt(expr.slot);
+        }
+        Globals.Cell cell = expr.cell;
+        if (cell == null) {
+            cell = expr.cell = globals.lookup(expr.name);
+        }
+        return cell.value;
     }
 
     @Override
     public Object visit(Expr.Assign expr){
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null){
-            environment.assignAt(distance, expr.name, value);
+        if (expr.upvalue >= 0) {
+            environment.upvalues[expr.upvalue].value = value;
+        } else if (expr.boxed) {
+            environment.boxAt(expr.slot).value = value;
+        } else if (!expr.global){
+            environment.assignAt(expr.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            Globals.Cell cell = expr.cell;
+            if (cell == null) {
+                cell = expr.cell = globals.lookupForAssign(expr.name);
+            }
+            cell.value = value;
         }
         return value;
     }
 
+    // Superinstructions built by the Fuser: the operands are frame locals,
+    // read straight from their slots as unboxed numbers. When one is not a
+    // number, the plain form does the work, and raises the same errors.
+    @Override
+    public Object visit(Expr.LocalCompareLocal expr) {
+        double left;
+        double right;
+        try {
+            left = environment.getNumberAt(expr.left.slot);
+            right = environment.getNumberAt(expr.right.slot);
+        } catch (NotANumber operand) {
+            return evaluate(expr.comparison);
+        }
+
+        switch(expr.comparison.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LOWER: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    // The value of an update is what it leaves in the slot, only boxed when
+    // it is used.
+    @Override
+    public Object visit(Expr.LocalIncrement expr) {
+        increment(expr);
+        return environment.getAt(expr.var.slot);
+    }
+
+    @Override
+    public Object visit(Expr.LocalUpdate expr) {
+        update(expr);
+        return environment.getAt(expr.var.slot);
+    }
+
+    private void increment(Expr.LocalIncrement expr) {
+        int slot = expr.var.slot;
+        double value;
+        try {
+            value = environment.getNumberAt(slot);
+        } catch (NotANumber operand) {
+            evaluate(expr.assign);
+            return;
+        }
+        environment.assignNumberAt(slot, value + expr.delta);
+    }
+
+    // The local is read before the operand is evaluated, as in the plain
+    // form, and the operand is evaluated once whatever its type.
+    private void update(Expr.LocalUpdate expr) {
+        int slot = expr.var.slot;
+        double left;
+        try {
+            left = environment.getNumberAt(slot);
+        } catch (NotANumber operand) {
+            environment.assignAt(slot, binary(expr.operator, operand.value, evaluate(expr.operand)));
+            return;
+        }
+        double right;
+        try {
+            right = number(expr.operand);
+        } catch (NotANumber operand) {
+            environment.assignAt(slot, binary(expr.operator, left, operand.value));
+            return;
+        }
+
+        switch(expr.operator.type) {
+            case PLUS: environment.assignNumberAt(slot, left + right); break;
+            case MINUS: environment.assignNumberAt(slot, left - right); break;
+            case STAR: environment.assignNumberAt(slot, left * right); break;
+            default: environment.assignNumberAt(slot, left / right);
+        }
+    }
+
     @Override
     public Object visit(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-        
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        return call(expr, evaluate(expr.callee));
+    }
+
+    // The inlined body only stands for the call while the callee is still
+    // the function it was taken from.
+    @Override
+    public Object visit(Expr.Inline expr) {
+        Object callee = evaluate(expr.call.callee);
+        if (callee instanceof LoxFunction && ((LoxFunction)callee).declaredBy(expr.function)) {
+            return evaluate(expr.body);
         }
+        return call(expr.call, callee);
+    }
 
+    // Arguments are evaluated into locals and handed to the entry point for
+    // their count, so small calls never build an argument array.
+    private Object call(Expr.Call expr, Object callee) {
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return checkCall(expr.paren, callee, 0).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return checkCall(expr.paren, callee, 1).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return checkCall(expr.paren, callee, 2).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return checkCall(expr.paren, callee, 3).call3(this, a, b, c);
+            }
+            case 4: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                return checkCall(expr.paren, callee, 4).call4(this, a, b, c, d);
+            }
+            default: {
+                Object[] values = new Object[arguments.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
+                return checkCall(expr.paren, callee, values.length).call(this, values);
+            }
+        }
+    }
+
+    static LoxCallable checkCall(Token paren, Object callee, int argCount) {
         if (!(callee instanceof LoxCallable)){
-            throw new RuntimeError(expr.paren, "Can only call functions and classes");
+            throw new RuntimeError(paren, "Can only call functions and classes");
         }
         LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()){
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but found " + arguments.size() + ".");
+        if (argCount != function.arity()){
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but found " + argCount + ".");
         }
-        return function.call(this, arguments);
+        return function;
     }
 
     @Override
@@ -176,27 +547,81 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visit(Stmt.PrintVar stmt){
+        System.out.println(stringify(visit(stmt.var)));
+        return null;
+    }
+
     @Override
     public Void visit(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        discard(stmt.expression);
         return null;
     }
 
+    // Evaluates an expression whose value is dropped.
+    private void discard(Expr expr) {
+        if (expr instanceof Expr.LocalIncrement) {
+            increment((Expr.LocalIncrement)expr);
+            return;
+        }
+        if (expr instanceof Expr.LocalUpdate) {
+            update((Expr.LocalUpdate)expr);
+            return;
+        }
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            // The value of the assignment is dropped, so a number can go
+            // straight into the slot without ever being boxed.
+            if (!assign.global && !assign.boxed && isNumeric(assign.value)) {
+                try {
+                    environment.assignNumberAt(assign.slot, number(assign.value));
+                } catch (NotANumber result) {
+                    environment.assignAt(assign.slot, result.value);
+                }
+                return;
+            }
+        }
+        evaluate(expr);
+    }
+
     @Override 
     public Void visit(Stmt.Var stmt) {
+        if (environment != null && !stmt.boxed && stmt.initializer != null && isNumeric(stmt.initializer)) {
+            try {
+                environment.defineNumber(stmt.slot, number(stmt.initializer));
+            } catch (NotANumber result) {
+                environment.define(stmt.slot, result.value);
+            }
+            return null;
+        }
+
         Object value = null;
         
         if(stmt.initializer != null){
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme,value);
+        if (environment == null) {
+            globals.define(stmt.name.symbol, value);
+        } else {
+            environment.define(stmt.slot, stmt.boxed ? new Box(value) : value);
+        }
         return null;
     }
 
     @Override
     public Void visit(Stmt.Block block){
-        execute_block(block.statements, new Environment(environment));
+        if (block.frameSize == 0) {
+            // Any locals of the block live in the current frame.
+            for (Stmt stmt : block.statements) {
+                execute(stmt);
+                if (returning) break;
+            }
+            return null;
+        }
+        // An outermost top-level block, the only kind with a frame of its own.
+        execute_block(block.statements, new Environment(Environment.NO_UPVALUES, block.frameSize));
         return null;
     }
 
@@ -211,26 +636,142 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visit(Stmt.While stmt) {
-        while(isThruthy(evaluate(stmt.condition)))
+        if (stmt.compiled != null) {
+            stmt.compiled.exec(environment);
+            return null;
+        }
+        while(isThruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            if (returning) return null;
+            if (tier != null && ++stmt.backEdges == HOT_BACK_EDGES) {
+                // The compiled loop starts by testing the condition, which is
+                // exactly where the interpreted one stands.
+                stmt.compiled = tier.compileLoop(stmt);
+                stmt.compiled.exec(environment);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.For stmt) {
+        if (stmt.frameSize == 0) {
+            loop(stmt);
+            return null;
+        }
+        // An outermost top-level loop declaring its variable gets a frame.
+        Environment previous = environment;
+        try {
+            environment = new Environment(Environment.NO_UPVALUES, stmt.frameSize);
+            loop(stmt);
+        } finally {
+            environment = previous;
+        }
         return null;
     }
 
+    private void loop(Stmt.For stmt) {
+        if (stmt.initializer != null) execute(stmt.initializer);
+        if (stmt.compiled != null) {
+            stmt.compiled.exec(environment);
+            return;
+        }
+        while (stmt.condition == null || isThruthy(evaluate(stmt.condition))) {
+            execute(stmt.body);
+            if (returning) return;
+            if (stmt.increment != null) discard(stmt.increment);
+            if (tier != null && ++stmt.backEdges == HOT_BACK_EDGES) {
+                // The compiled loop skips the initializer and starts by
+                // testing the condition, which is where the interpreted one
+                // stands after the increment.
+                stmt.compiled = tier.compileLoop(stmt);
+                stmt.compiled.exec(environment);
+                return;
+            }
+        }
+    }
+
     @Override
     public Void visit(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt,environment);
-        environment.define(stmt.name.lexeme, function);
+        if (environment == null) {
+            globals.define(stmt.name.symbol, new LoxFunction(stmt, Environment.NO_UPVALUES));
+        } else if (stmt.boxed) {
+            // The box exists before the closure, which may capture itself.
+            Box box = new Box(null);
+            environment.define(stmt.slot, box);
+            box.value = new LoxFunction(stmt, Environment.capture(environment, stmt.captures));
+        } else {
+            environment.define(stmt.slot, new LoxFunction(stmt, Environment.capture(environment, stmt.captures)));
+        }
         return null;
     }
 
     @Override
     public Void visit(Stmt.Return stmt) {
         Object value = null;
-        if(stmt.value != null){
+        if(stmt.value instanceof Expr.Call && ((Expr.Call)stmt.value).tail){
+            Expr.Call call = (Expr.Call)stmt.value;
+            Object callee = evaluate(call.callee);
+            if (callee instanceof LoxFunction && ((LoxFunction)callee).arity() == call.arguments.size()) {
+                // The arguments go straight into the callee's frame.
+                LoxFunction function = (LoxFunction)callee;
+                Environment frame = function.frame();
+                for (Expr argument : call.arguments) {
+                    frame.define(evaluate(argument));
+                }
+                tailCall(function, frame);
+                return null;
+            }
+            value = call(call, callee);
+        } else if(stmt.value != null){
             value = evaluate(stmt.value);
         }
 
-        throw new Return(value);
+        returnWith(value);
+        return null;
+    }
+
+    void returnWith(Object value) {
+        returnValue = value;
+        returning = true;
+    }
+
+    void tailCall(LoxFunction function, Environment frame) {
+        tailCallee = function;
+        tailFrame = frame;
+        returning = true;
+    }
+
+    LoxFunction takeTailCallee() {
+        LoxFunction callee = tailCallee;
+        tailCallee = null;
+        return callee;
+    }
+
+    Environment takeTailFrame() {
+        Environment frame = tailFrame;
+        tailFrame = null;
+        return frame;
+    }
+
+    Object takeReturnValue() {
+        if (!returning) return null;
+        Object value = returnValue;
+        returning = false;
+        returnValue = null;
+        return value;
+    }
+
+    public void execute_body(Stmt.Function declaration, Environment env){
+        if (tier != null && declaration.compiled == null && ++declaration.calls == HOT_CALLS) {
+            declaration.compiled = tier.compileBody(declaration);
+        }
+        if (declaration.compiled != null) {
+            ClosureCompiler.run(declaration.compiled, env);
+            return;
+        }
+        execute_block(declaration.body, env);
     }
 
     public void execute_block(List<Stmt> statements, Environment env){
@@ -239,24 +780,69 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             this.environment = env;
             for (Stmt stmt : statements){
                 execute(stmt);
+                if (returning) break;
             }
         } finally {
             this.environment = previous;
         }
     }
 
-    private boolean isThruthy(Object obj) {
+    // Picks the form a node rewrites itself into from the operand types it
+    // just saw. A node that was already specialized only gets here when its
+    // guard failed, and then becomes generic.
+    private static Specialization specialize(Expr.Binary expr, Object left, Object right) {
+        if (expr.specialization != Specialization.UNINITIALIZED) return Specialization.GENERIC;
+
+        if (left instanceof Double && right instanceof Double) {
+            switch(expr.operator.type) {
+                case PLUS: return Specialization.NUMBER_ADD;
+                case MINUS: return Specialization.NUMBER_SUBTRACT;
+                case STAR: return Specialization.NUMBER_MULTIPLY;
+                case SLASH: return Specialization.NUMBER_DIVIDE;
+                case GREATER: return Specialization.NUMBER_GREATER;
+                case GREATER_EQUAL: return Specialization.NUMBER_GREATER_EQUAL;
+                case LOWER: return Specialization.NUMBER_LESS;
+                case LOWER_EQUAL: return Specialization.NUMBER_LESS_EQUAL;
+            }
+        }
+        if (Rope.isString(left) && Rope.isString(right) && expr.operator.type == TokenType.PLUS) {
+            return Specialization.STRING_ADD;
+        }
+        return Specialization.GENERIC;
+    }
+
+    private static Specialization specialize(Expr.Unary expr, Object right) {
+        if (expr.specialization != Specialization.UNINITIALIZED) return Specialization.GENERIC;
+
+        if (right instanceof Double && expr.operator.type == TokenType.MINUS) return Specialization.NUMBER_NEGATE;
+        if (right instanceof Boolean && expr.operator.type == TokenType.BANG) return Specialization.BOOLEAN_NOT;
+        return Specialization.GENERIC;
+    }
+
+    private static Specialization specialize(Expr.Logical expr, Object left) {
+        if (expr.specialization != Specialization.UNINITIALIZED) return Specialization.GENERIC;
+
+        if (left instanceof Boolean) {
+            return expr.operator.type == TokenType.OR ? Specialization.BOOLEAN_OR : Specialization.BOOLEAN_AND;
+        }
+        return Specialization.GENERIC;
+    }
+
+    static boolean isThruthy(Object obj) {
         if(obj == null) return false;
         if(obj instanceof Boolean) return (boolean)obj;
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         if (left == null && right == null) return true;
         if (left == null) return false;
+        // String.equals knows nothing of ropes, Rope.equals compares the
+        // characters of either.
+        if (right instanceof Rope) return right.equals(left);
         return left.equals(right);
     }
-    private String stringify(Object value) {
+    static String stringify(Object value) {
         if(value == null) return "nil";
 
         if(value instanceof Double) {
@@ -270,21 +856,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return value.toString();
     }
 
-    private void checkNumberOperand(Token token, Object operand) {
+    static void checkNumberOperand(Token token, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(token, "Operand must be a number.");
     }
-    private void checkNumberOperand(Token token, Object left, Object right) {
+    static void checkNumberOperand(Token token, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(token, "Operands must be a numbers.");
     }
-
-    private Object lookupVariable(Token name, Expr expr){
-        Integer distance =  locals.get(expr);
-        if (distance != null){
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
-        }
-    }
 }
@@ -4,8 +4,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 
 import static fr.bvarillon.lox.TokenType.*;
@@ -19,21 +19,89 @@ public class Lox {
 
 
     private static Interpreter interpreter = new Interpreter();
+    private static ClosureCompiler closureCompiler = new ClosureCompiler(interpreter);
+    private static VM vm = new VM(interpreter);
+    private static String engine = "tree";
+    private static boolean dumpAst = false;
+    private static final Optimizer optimizer = new Optimizer()
+            .add(new Inliner())
+            .add(new ConstantFolder())
+            .add(new BranchPruner())
+            .add(new DeadCodeEliminator());
+    private static boolean fuse = true;
+    private static final Fuser fuser = new Fuser();
 
     public static void main(String[] args)  throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage jlox [scripts]");
+        String script = null;
+        boolean maxDepth = false;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+                if (!engine.equals("tree") && !engine.equals("tiered")
+                        && !engine.equals("closure") && !engine.equals("vm")) {
+                    System.out.println("Unknown engine '" + engine + "', expected tree, tiered, closure or vm.");
+                    System.exit(64);
+                }
+            } else if (arg.startsWith("--max-depth=")) {
+                int depth = 0;
+                try {
+                    depth = Integer.parseInt(arg.substring("--max-depth=".length()));
+                } catch (NumberFormatException error) {
+                    // Reported below.
+                }
+                if (depth < 1) {
+                    System.out.println("Invalid max depth '" + arg + "', expected a positive number.");
+                    System.exit(64);
+                }
+                vm.setMaxDepth(depth);
+                maxDepth = true;
+            } else if (arg.equals("--dump-ast")) {
+                dumpAst = true;
+            } else if (arg.equals("--no-fuse")) {
+                fuse = false;
+            } else if (script == null) {
+                script = arg;
+            } else {
+                System.out.println("Usage jlox [--engine=tree|tiered|closure|vm] [--max-depth=n (vm only)] [--dump-ast] [--no-fuse] [script|-]");
+                System.exit(64);
+            }
+        }
+
+        // The other engines run Lox calls on the Java stack, which has no
+        // such limit to set.
+        if (maxDepth && !engine.equals("vm")) {
+            System.out.println("--max-depth only applies to --engine=vm.");
             System.exit(64);
-        } else if (args.length == 1){
-            runFile(args[0]);
+        }
+
+        if (engine.equals("tiered")) {
+            interpreter.enableTiering(closureCompiler);
+        }
+
+        if ("-".equals(script)) {
+            runStream();
+        } else if (script != null){
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        run(Source.map(Paths.get(path), Charset.defaultCharset()));
+        if (hadError) System.exit(65);
+        if (hadRuntimeError) System.exit(70);
+    }
+
+    // Runs a script read from the standard input, such as the output of a
+    // generator, one top-level declaration at a time: each one runs as soon
+    // as it is parsed, and is dropped once it has run. After a syntax error
+    // the rest is only parsed, to report any further error.
+    private static void runStream() {
+        Parser parser = new Parser(new Scanner(Source.read(new InputStreamReader(System.in))));
+        for (Stmt stmt = parser.next(); stmt != null && !hadRuntimeError; stmt = parser.next()) {
+            if (!hadError) execute(Collections.singletonList(stmt));
+        }
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
@@ -46,28 +114,49 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
+            run(Source.of(line));
             hadError = false;
         }
 
     }
 
-    private static void run(String source){
+    private static void run(Source source){
         Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens(); 
+        TokenBuffer tokens = scanner.scanTokens();
 
         Parser parser = new Parser(tokens);
         List<Stmt> stmts = parser.parse();
 
         if (hadError) return;
 
-        Resolver resolver = new Resolver(interpreter);
+        execute(stmts);
+    }
+
+    // Resolves, optimizes and runs parsed statements.
+    private static void execute(List<Stmt> stmts){
+        Resolver resolver = new Resolver();
         resolver.resolve(stmts);
 
         if (hadError) return;
 
-        // System.out.println(new AstPrinter().print(expr));
-        interpreter.interpret(stmts);
+        stmts = optimizer.optimize(stmts);
+        if (fuse) stmts = fuser.run(stmts);
+        new Resolver().resolve(stmts);
+        new TypeInference().infer(stmts);
+
+        if (dumpAst) {
+            AstPrinter printer = new AstPrinter();
+            for (Stmt stmt : stmts) {
+                System.out.println(printer.print(stmt));
+            }
+        }
+        if (engine.equals("closure")) {
+            closureCompiler.interpret(stmts);
+        } else if (engine.equals("vm")) {
+            vm.interpret(stmts);
+        } else {
+            interpreter.interpret(stmts);
+        }
     }
 
     public static void error(int line, String message) {
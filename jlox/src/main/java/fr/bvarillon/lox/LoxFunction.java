@@ -1,39 +1,97 @@
 package fr.bvarillon.lox;
 
-import java.util.List;
-
-
 /**
  * LoxFunction
  */
 public class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
-    private final Environment closure;
+    // The boxes of the variables the function uses from enclosing functions.
+    private final Box[] upvalues;
 
-    LoxFunction(Stmt.Function declaration, Environment closure){
+    LoxFunction(Stmt.Function declaration, Box[] upvalues){
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
     }
 
     @Override
     public int arity(){
         return declaration.params.size();
     }
-    
+
+    // Optimization passes may rebuild a declaration, but keep its name token.
+    boolean declaredBy(Stmt.Function declaration) {
+        return this.declaration.name == declaration.name;
+    }
+
+    // A fresh frame for a call, the caller defines the arguments in it.
+    Environment frame() {
+        return new Environment(upvalues, declaration.frameSize);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(interpreter, frame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment environment = frame();
+        environment.define(a);
+        return run(interpreter, environment);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment environment = frame();
+        environment.define(a);
+        environment.define(b);
+        return run(interpreter, environment);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment environment = frame();
+        environment.define(a);
+        environment.define(b);
+        environment.define(c);
+        return run(interpreter, environment);
+    }
+
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments){
-        Environment environment = new Environment(closure);
-        for(int i = 0; i < declaration.params.size(); i++){
-            environment.define(declaration.params.get(i).lexeme,
-                arguments.get(i));
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Environment environment = frame();
+        environment.define(a);
+        environment.define(b);
+        environment.define(c);
+        environment.define(d);
+        return run(interpreter, environment);
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments){
+        Environment environment = frame();
+        for (Object argument : arguments) {
+            environment.define(argument);
         }
-        
-        try{
-            interpreter.execute_block(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+        return run(interpreter, environment);
+    }
+
+    // Runs the body in the given frame. Tail calls left by the body are run
+    // here, in the same Java frame, so tail recursion does not grow the stack.
+    Object run(Interpreter interpreter, Environment environment) {
+        LoxFunction function = this;
+        for (;;) {
+            for (int slot : function.declaration.boxedParams) {
+                environment.box(slot);
+            }
+            interpreter.execute_body(function.declaration, environment);
+            Object value = interpreter.takeReturnValue();
+            LoxFunction callee = interpreter.takeTailCallee();
+            if (callee == null) return value;
+
+            function = callee;
+            environment = interpreter.takeTailFrame();
         }
-        return null;
     }
 
     @Override
@@ -0,0 +1,16 @@
+package fr.bvarillon.lox;
+
+/**
+ * NotANumber
+ *
+ * Thrown by the Interpreter's unboxed number path when a value turns out not
+ * to be a number, carrying that value back to the generic path.
+ */
+public class NotANumber extends RuntimeException {
+    final Object value;
+
+    NotANumber(Object value){
+        super(null,null,false,false);
+        this.value = value;
+    }
+}
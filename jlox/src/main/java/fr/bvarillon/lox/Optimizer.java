@@ -0,0 +1,27 @@
+package fr.bvarillon.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optimizer
+ *
+ * Runs a pipeline of passes over the resolved program, in the order they
+ * were added. Passes build new nodes without the Resolver's annotations,
+ * so the result has to be resolved again before it runs.
+ */
+public class Optimizer {
+    private final List<Pass> passes = new ArrayList<>();
+
+    Optimizer add(Pass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    List<Stmt> optimize(List<Stmt> stmts) {
+        for (Pass pass : passes) {
+            stmts = pass.run(stmts);
+        }
+        return stmts;
+    }
+}
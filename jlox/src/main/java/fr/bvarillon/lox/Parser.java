@@ -1,23 +1,36 @@
 package fr.bvarillon.lox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static fr.bvarillon.lox.TokenType.*;
 
 /**
  * Parser
+ *
+ * Walks the TokenBuffer by index, and only makes Token objects for the
+ * tokens the tree keeps, or when reporting an error.
+ *
+ * Given the Scanner rather than its tokens, it reads the tokens as it goes
+ * and hands out the declarations one at a time, see next.
  */
 public class Parser {
 
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
+    // null when all the tokens are already scanned.
+    private final Scanner scanner;
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
+        this.scanner = null;
+    }
+
+    Parser(Scanner scanner) {
+        this.tokens = scanner.tokens();
+        this.scanner = scanner;
     }
 
     public List<Stmt> parse(){
@@ -28,6 +41,19 @@ public class Parser {
         return statements;
     }
 
+    // The next top-level declaration, null at the end, skipping those with
+    // a syntax error once reported. The tokens and text of the previous
+    // ones are released first.
+    Stmt next(){
+        scanner.release(current);
+        current = 0;
+        Stmt stmt = null;
+        while(stmt == null && !isAtEnd()){
+            stmt = declaration();
+        }
+        return stmt;
+    }
+
     private Stmt declaration(){
         try{
             if (match(FUN)) return function("function");
@@ -41,13 +67,13 @@ public class Parser {
     }
 
     private Stmt function(String kind){
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+        Token name = consumeToken(IDENTIFIER, "Expect " + kind + " name.");
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if(!check(RIGHT_PAREN)){
             do {
                 if(parameters.size()>255) error(peek(), "Can't have more then 255 parameters.");
-                parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+                parameters.add(consumeToken(IDENTIFIER, "Expect parameter name."));
             } while(match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters list.");
@@ -57,7 +83,7 @@ public class Parser {
     }
 
     private Stmt varDeclaration(){
-        Token name = consume(IDENTIFIER,"Expect variable name.");
+        Token name = consumeToken(IDENTIFIER,"Expect variable name.");
 
         Expr initializer = null;
         if(match(EQUAl)){
@@ -125,19 +151,7 @@ public class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) 
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-
-        if (condition == null)
-            condition = new Expr.Literal(true);
-
-        Stmt loop = new Stmt.While(condition, body);
-        
-        if (initializer != null) {
-            loop  = new Stmt.Block(Arrays.asList(initializer, loop));
-        }
-
-        return loop;
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt ifStatement(){
@@ -185,7 +199,7 @@ public class Parser {
         Expr expr = or();
 
         if(match(EQUAl)) {
-            Token equals = previous();
+            int equals = current - 1;
             Expr value = assignment();
 
             if (expr instanceof Expr.Var) {
@@ -193,7 +207,7 @@ public class Parser {
                 return new Expr.Assign(name, value);
             }
 
-            error(equals, "Invalid assignment target.");
+            error(tokens.token(equals), "Invalid assignment target.");
         }
 
         return expr;
@@ -296,7 +310,7 @@ public class Parser {
             } while (match(COMMA));
         }
 
-        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        Token paren = consumeToken(RIGHT_PAREN, "Expect ')' after arguments.");
         return new Expr.Call(calle, paren, arguments);
     }
 
@@ -305,7 +319,7 @@ public class Parser {
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(NIL)) return new Expr.Literal(null);
         if (match(NUMBER,STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         }
         if (match(IDENTIFIER)) { return new Expr.Var(previous());}
         if (match(LEFT_PAREN)) {
@@ -328,32 +342,47 @@ public class Parser {
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return type(current) == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if(!isAtEnd()) current++;
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return type(current) == EOF;
+    }
+
+    private TokenType type(int index) {
+        if (scanner != null) {
+            while (index >= tokens.size()) scanner.scanNext();
+        }
+        return tokens.type(index);
     }
 
     private Token peek() {
-        return tokens.get(current);
+        type(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current-1);
+        return tokens.token(current-1);
     }
 
-    private Token consume(TokenType type, String message) {
-        if(check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        if(check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
 
+    private Token consumeToken(TokenType type, String message) {
+        consume(type, message);
+        return previous();
+    }
+
     private ParseError error(Token token, String message) {
         Lox.error(token.line, message);
         return new ParseError();
@@ -363,9 +392,9 @@ public class Parser {
         advance();
 
         while(!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch(peek().type) {
+            switch(type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -0,0 +1,14 @@
+package fr.bvarillon.lox;
+
+import java.util.List;
+
+/**
+ * Pass
+ *
+ * An optimization pass run by the Optimizer. It may rewrite the program
+ * freely, as long as running it prints the same output and raises the same
+ * runtime errors.
+ */
+interface Pass {
+    List<Stmt> run(List<Stmt> stmts);
+}
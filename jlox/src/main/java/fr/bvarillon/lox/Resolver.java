@@ -1,49 +1,150 @@
 package  fr.bvarillon.lox;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Stack;
 
 
 /**
  * Resolver
+ *
+ * Besides checking scopes, lays out the environments of the tree-walking
+ * engines. Only functions and outermost top-level blocks get their own
+ * Environment; the locals of any other block are flattened into it, so
+ * blocks, notably loop bodies, allocate nothing when they run.
+ *
+ * Functions are closure converted: a local used from a nested function is
+ * kept in a Box, and each function lists the boxes it captures when it is
+ * created, so it holds on to exactly its free variables and reaches each in
+ * one step.
+ *
+ * Whether a local is captured is only known once its whole scope has been
+ * resolved, so variable uses are recorded and their slots are filled in
+ * when the outermost scope ends.
+ *
+ * Names are compared by their id in Symbols. Scopes hold few locals, so
+ * they are searched in a list rather than hashed.
  */
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private Interpreter interpreter;
-    private final Stack<Map<String,Boolean>> scopes = new Stack<>();
+    private Scope current = null;
     private FunctionType currentFunction = FunctionType.None;
 
+    // Scopes and uses of the pending outermost scope, scopes in the order
+    // they were opened.
+    private final List<Scope> pendingScopes = new ArrayList<>();
+    private final List<Use> pendingUses = new ArrayList<>();
+
+    private static class Scope {
+        final Scope enclosing;
+        final boolean function;
+        final List<Local> locals = new ArrayList<>();
+        // For functions, the locals of enclosing functions it uses.
+        final List<Capture> captures = new ArrayList<>();
+
+        // Layout: the scope whose Environment holds these locals, and the
+        // slot of the first one in it.
+        Scope frame;
+        int base;
+        int frameSize;
+
+        Scope(Scope enclosing, boolean function){
+            this.enclosing = enclosing;
+            this.function = function;
+        }
+
+        boolean ownsFrame(){
+            return function || enclosing == null;
+        }
+
+        // The latest local declared with the name, or null.
+        Local find(int symbol){
+            for (int i = locals.size() - 1; i >= 0; i--) {
+                if (locals.get(i).symbol == symbol) return locals.get(i);
+            }
+            return null;
+        }
+    }
+
+    private static class Local {
+        final Scope scope;
+        final int index;
+        final int symbol;
+        boolean defined = false;
+        // Used from a nested function, so kept in a Box.
+        boolean captured = false;
+
+        Local(Scope scope, int index, int symbol){
+            this.scope = scope;
+            this.index = index;
+            this.symbol = symbol;
+        }
+
+        int slot(){
+            return scope.base + index;
+        }
+    }
+
+    // An upvalue of a function: the local, taken from the frame the
+    // function is created in, or from upvalue 'upvalue' of the function
+    // creating it when the local belongs to a function further out.
+    private static class Capture {
+        final Local local;
+        final int upvalue;
+
+        Capture(Local local, int upvalue){
+            this.local = local;
+            this.upvalue = upvalue;
+        }
+    }
+
+    // A resolved node waiting for the layout: an Expr.Var or Expr.Assign
+    // using a local, directly or as upvalue 'upvalue' of the enclosing
+    // function, a local declaration, or a block or function scope.
+    private static class Use {
+        final Object node;
+        final Scope scope;
+        final Local local;
+        final int upvalue;
+
+        Use(Object node, Scope scope, Local local, int upvalue){
+            this.node = node;
+            this.scope = scope;
+            this.local = local;
+            this.upvalue = upvalue;
+        }
+
+        Use(Object node, Scope scope, Local local){
+            this(node, scope, local, -1);
+        }
+    }
+
     private enum FunctionType {
         None,
         Function
     }
 
-    Resolver(Interpreter interpreter){
-        this.interpreter = interpreter;
-    }
-
     public void resolve(List<Stmt> statements){
         for(Stmt stmt : statements){
             resolve(stmt);
         }
     }
-    
+
     @Override
     public Void visit(Stmt.Block stmt){
-        beginScope();
+        beginScope(false);
         resolve(stmt.statements);
+        pendingUses.add(new Use(stmt, current, null));
         endScope();
         return null;
     }
 
     @Override
     public Void visit(Stmt.Var stmt){
-        declare(stmt.name);
+        Local local = declare(stmt.name);
         if (stmt.initializer !=null){
             resolve(stmt.initializer);
         }
         define(stmt.name);
+        if (local != null) pendingUses.add(new Use(stmt, current, local));
         return null;
     }
 
@@ -67,6 +168,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visit(Stmt.PrintVar stmt){
+        resolve(stmt.print);
+        return null;
+    }
+
     @Override
     public Void visit(Stmt.Return stmt){
         if (currentFunction == FunctionType.None){
@@ -75,6 +182,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         if(stmt.value != null)
             resolve(stmt.value);
 
+        // The value of the call is the value of the function, so the call
+        // can reuse the caller's frame.
+        if(stmt.value instanceof Expr.Call)
+            ((Expr.Call)stmt.value).tail = true;
+
         return null;
     }
 
@@ -85,6 +197,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visit(Stmt.For stmt){
+        beginScope(false);
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        if (stmt.increment != null) resolve(stmt.increment);
+        resolve(stmt.body);
+        pendingUses.add(new Use(stmt, current, null));
+        endScope();
+        return null;
+    }
+
     @Override
     public Void visit(Expr.Binary expr){
         resolve(expr.left);
@@ -102,6 +226,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visit(Expr.Inline expr){
+        resolve(expr.call);
+        resolve(expr.body);
+        return null;
+    }
+
     @Override
     public Void visit(Expr.Grouping expr){
         resolve(expr.expression);
@@ -113,6 +244,26 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    // Fused nodes are resolved through the nodes they stand for, which
+    // include their operands.
+    @Override
+    public Void visit(Expr.LocalCompareLocal expr){
+        resolve(expr.comparison);
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.LocalIncrement expr){
+        resolve(expr.assign);
+        return null;
+    }
+
+    @Override
+    public Void visit(Expr.LocalUpdate expr){
+        resolve(expr.assign);
+        return null;
+    }
+
     @Override
     public Void visit(Expr.Logical expr){
         resolve(expr.left);
@@ -128,25 +279,27 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visit(Expr.Var expr){
-        if(!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE){
+        Local own = current != null ? current.find(expr.name.symbol) : null;
+        if(own != null && !own.defined){
             Lox.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        expr.global = !resolveLocal(expr, expr.name);
         return null;
     }
 
     @Override
     public Void visit(Expr.Assign expr){
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.global = !resolveLocal(expr, expr.name);
         return null;
     }
 
     @Override
     public Void visit(Stmt.Function stmt){
-        declare(stmt.name);
+        Local local = declare(stmt.name);
         define(stmt.name);
+        if (local != null) pendingUses.add(new Use(stmt, current, local));
 
         resolveFunction(stmt, FunctionType.Function);
         return null;
@@ -161,53 +314,151 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
-    private void resolveLocal(Expr expr, Token token){
-        for (int i = scopes.size()-1; i >=0; i--){
-            if (scopes.get(i).containsKey(token.lexeme)) {
-                interpreter.resolve(expr, scopes.size()-1-i);
-                return;
+    // Records the use of a local by a node, or returns false when the name
+    // is not declared in any local scope and so must be a global. A use from
+    // a nested function captures the local in every function in between.
+    private boolean resolveLocal(Object node, Token token){
+        List<Scope> crossed = null;
+        for (Scope scope = current; scope != null; scope = scope.enclosing){
+            Local local = scope.find(token.symbol);
+            if (local != null) {
+                int upvalue = -1;
+                if (crossed != null) {
+                    local.captured = true;
+                    upvalue = capture(crossed, 0, local);
+                }
+                pendingUses.add(new Use(node, current, local, upvalue));
+                return true;
             }
+            if (scope.function) {
+                if (crossed == null) crossed = new ArrayList<>();
+                crossed.add(scope);
+            }
+        }
+        return false;
+    }
+
+    // Index of a local among the upvalues of crossed.get(i), adding it there
+    // and in the functions further out as needed.
+    private int capture(List<Scope> crossed, int i, Local local){
+        int from = i + 1 < crossed.size() ? capture(crossed, i + 1, local) : -1;
+        List<Capture> captures = crossed.get(i).captures;
+        for (int j = 0; j < captures.size(); j++) {
+            if (captures.get(j).local == local) return j;
         }
+        captures.add(new Capture(local, from));
+        return captures.size() - 1;
     }
 
     private void resolveFunction(Stmt.Function func, FunctionType type){
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
-        beginScope();
+        beginScope(true);
         for (Token param: func.params){
             declare(param);
             define(param);
         }
         resolve(func.body);
+        pendingUses.add(new Use(func, current, null));
         endScope();
         currentFunction = enclosingFunction;
     }
-    
-    private void beginScope(){
-        scopes.push(new HashMap<String,Boolean>());
+
+    private void beginScope(boolean function){
+        current = new Scope(current, function);
+        pendingScopes.add(current);
     }
 
     private void endScope(){
-        scopes.pop();
+        current = current.enclosing;
+        if (current == null) layout();
     }
 
-    private void declare(Token name){
-        if (scopes.isEmpty()) return;
-        
-        Map<String,Boolean> scope = scopes.peek();
+    private Local declare(Token name){
+        if (current == null) return null;
 
-        if(scope.containsKey(name.lexeme)){
+        if(current.find(name.symbol) != null){
             Lox.error(name, "Already a variable with this name in the scope.");
         }
-        scope.put(name.lexeme, false);
+        Local local = new Local(current, current.locals.size(), name.symbol);
+        current.locals.add(local);
+        return local;
     }
 
     private void define(Token name){
-        if (scopes.isEmpty()) return;
-        
-        Map<String,Boolean> scope = scopes.peek();
-        scope.put(name.lexeme, true);
+        if (current == null) return;
+
+        current.find(name.symbol).defined = true;
     }
-    
-}
 
+    // Places every scope of the finished outermost scope in a frame, then
+    // fills in the slots, captures and frame sizes recorded on the way.
+    // Scopes sharing a frame are stacked, so sibling blocks reuse slots.
+    private void layout(){
+        for (Scope scope : pendingScopes) {
+            if (scope.ownsFrame()) {
+                scope.frame = scope;
+                scope.base = 0;
+            } else {
+                scope.frame = scope.enclosing.frame;
+                scope.base = scope.enclosing.base + scope.enclosing.locals.size();
+            }
+            Scope frame = scope.frame;
+            frame.frameSize = Math.max(frame.frameSize, scope.base + scope.locals.size());
+        }
+
+        for (Use use : pendingUses) {
+            if (use.node instanceof Expr.Var) {
+                Expr.Var expr = (Expr.Var)use.node;
+                expr.slot = use.local.slot();
+                expr.upvalue = use.upvalue;
+                expr.boxed = use.local.captured;
+            } else if (use.node instanceof Expr.Assign) {
+                Expr.Assign expr = (Expr.Assign)use.node;
+                expr.slot = use.local.slot();
+                expr.upvalue = use.upvalue;
+                expr.boxed = use.local.captured;
+            } else if (use.node instanceof Stmt.Var) {
+                Stmt.Var stmt = (Stmt.Var)use.node;
+                stmt.slot = use.local.slot();
+                stmt.boxed = use.local.captured;
+            } else if (use.node instanceof Stmt.Function && use.local != null) {
+                Stmt.Function stmt = (Stmt.Function)use.node;
+                stmt.slot = use.local.slot();
+                stmt.boxed = use.local.captured;
+            } else if (use.node instanceof Stmt.Function) {
+                layoutFunction((Stmt.Function)use.node, use.scope);
+            } else if (use.node instanceof Stmt.Block) {
+                // 0 tells the engines to run the block in the current frame.
+                Scope scope = use.scope;
+                ((Stmt.Block)use.node).frameSize = scope.frame == scope ? scope.frameSize : 0;
+            } else if (use.node instanceof Stmt.For) {
+                Scope scope = use.scope;
+                ((Stmt.For)use.node).frameSize = scope.frame == scope ? scope.frameSize : 0;
+            }
+        }
+
+        pendingScopes.clear();
+        pendingUses.clear();
+    }
+
+    private void layoutFunction(Stmt.Function stmt, Scope scope){
+        stmt.frameSize = scope.frameSize;
+
+        stmt.captures = new int[scope.captures.size()];
+        for (int i = 0; i < stmt.captures.length; i++) {
+            Capture capture = scope.captures.get(i);
+            stmt.captures[i] = capture.upvalue < 0 ? capture.local.slot() : -1 - capture.upvalue;
+        }
+
+        int boxedParams = 0;
+        for (Token param : stmt.params) {
+            if (scope.find(param.symbol).captured) boxedParams++;
+        }
+        stmt.boxedParams = new int[boxedParams];
+        for (Token param : stmt.params) {
+            Local local = scope.find(param.symbol);
+            if (local.captured) stmt.boxedParams[--boxedParams] = local.slot();
+        }
+    }
+}
@@ -1,13 +0,0 @@
-package fr.bvarillon.lox;
-
-/**
- * Return
- */
-public class Return extends RuntimeException {
-    final Object value;
-
-    Return(Object value){
-        super(null,null,false,false);
-        this.value = value;
-    }
-}
@@ -0,0 +1,85 @@
+package fr.bvarillon.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Rope
+ *
+ * A Lox string built by concatenation. Lox strings are either a String or
+ * a Rope, and concatenating long strings only links them in a new Rope, so
+ * building a string piece by piece takes time and memory linear in its
+ * final length. The characters are copied once, when the string is
+ * printed, compared or hashed; the flat string is then kept and the pieces
+ * dropped.
+ */
+public class Rope {
+    // Concatenations shorter than this are plain copies: they are cheap,
+    // and most strings never grow past it.
+    static final int MIN_LENGTH = 64;
+
+    // String or Rope each, null once flattened.
+    private Object left;
+    private Object right;
+    private String flat = null;
+    private final int length;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // Both operands must be Lox strings.
+    static Object concat(Object left, Object right) {
+        int length = length(left) + length(right);
+        if (length < MIN_LENGTH) return left.toString() + right.toString();
+        return new Rope(left, right, length);
+    }
+
+    private static int length(Object string) {
+        return string instanceof Rope ? ((Rope)string).length : ((String)string).length();
+    }
+
+    // Walks the pieces left to right with a stack of the right ones still to
+    // append, as the ropes built in loops are as deep as they are long.
+    @Override
+    public String toString() {
+        if (flat != null) return flat;
+
+        StringBuilder builder = new StringBuilder(length);
+        Deque<Object> pending = new ArrayDeque<>();
+        Object piece = this;
+        for (;;) {
+            if (piece instanceof Rope && ((Rope)piece).flat == null) {
+                Rope rope = (Rope)piece;
+                pending.push(rope.right);
+                piece = rope.left;
+                continue;
+            }
+            builder.append(piece.toString());
+            if (pending.isEmpty()) break;
+            piece = pending.pop();
+        }
+
+        flat = builder.toString();
+        left = null;
+        right = null;
+        return flat;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!isString(other)) return false;
+        return toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
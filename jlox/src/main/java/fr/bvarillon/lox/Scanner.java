@@ -1,56 +1,68 @@
 package fr.bvarillon.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import static fr.bvarillon.lox.TokenType.*;
 
 
+/**
+ * Scanner
+ *
+ * Reads the source one char at a time and allocates nothing per
+ * token: keywords are told apart by a switch on their first chars and a
+ * check of the rest in place, and identifiers are hashed while they are
+ * scanned, then interned in Symbols.
+ */
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final Source source;
+    private final TokenBuffer tokens;
     private int start = 0;
     private int current = 0;
     private int line = 1;
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",     AND);
-        keywords.put("class",   CLASS);
-        keywords.put("else",    ELSE);
-        keywords.put("false",   FALSE);
-        keywords.put("for",     FOR);
-        keywords.put("fun",     FUN);
-        keywords.put("if",      IF);
-        keywords.put("nil",     NIL);
-        keywords.put("or",      OR);
-        keywords.put("print",   PRINT);
-        keywords.put("return",  RETURN);
-        keywords.put("super",   SUPER);
-        keywords.put("this",    THIS);
-        keywords.put("true",    TRUE);
-        keywords.put("var",     VAR);
-        keywords.put("while",   WHILE);
-    }
-    Scanner(String source) {
+
+    Scanner(Source source) {
         this.source = source;
+        this.tokens = new TokenBuffer(source);
     }
 
-    List<Token> scanTokens() {
+    TokenBuffer scanTokens() {
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line);
+        return tokens;
+    }
+
+    // Scans on until one more token is added, which is EOF at the end, for
+    // a Parser reading the tokens as it goes.
+    void scanNext() {
+        int size = tokens.size();
+        while (tokens.size() == size) {
+            if (isAtEnd()) {
+                tokens.add(EOF, current, 0, line);
+                return;
+            }
+            start = current;
+            scanToken();
+        }
+    }
+
+    TokenBuffer tokens() {
         return tokens;
     }
 
+    // Drops the tokens before index first, which the Parser is done with,
+    // and the text before them.
+    void release(int first) {
+        int offset = first < tokens.size() ? tokens.start(first) : current;
+        int shift = source.release(offset);
+        tokens.release(first, shift);
+        current -= shift;
+        start = current;
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !source.has(current);
     }
 
     private void scanToken() {
@@ -80,7 +92,7 @@ public class Scanner {
                 break;
             case '/':
                 if (match('/')) {
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    while (!isAtEnd() && source.charAt(current) != '\n') current++;
                 } else if (match('*')) {
                     multi_comment();
                 } else {
@@ -90,6 +102,8 @@ public class Scanner {
             case ' ':
             case '\t':
             case '\r':
+                // Indentation comes in runs.
+                while (!isAtEnd() && isBlank(source.charAt(current))) current++;
                 break;
             case '\n':
                 line++;
@@ -104,6 +118,7 @@ public class Scanner {
                     identifier();
                 } else {
                     Lox.error(line, "Unexpected character.");
+                    while (!isAtEnd() && source.continues(current)) current++;
                 }
                 break;
         }
@@ -113,13 +128,9 @@ public class Scanner {
         return source.charAt(current++);
     }
 
+    // The lexeme and any literal are left in the source, see TokenBuffer.
     private void addToken(TokenType type) {
-        addToken(type,null);
-    }
-
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start,current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, line);
     }
 
     private boolean match(char expected) {
@@ -136,14 +147,16 @@ public class Scanner {
     }
 
     private char peekNext() {
-        if (current +1 >= source.length()) return '\0';
+        if (!source.has(current + 1)) return '\0';
         return source.charAt(current+1);
     }
 
     private void string() {
-        while (peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') line ++;
-            advance();
+        while (!isAtEnd()) {
+            char c = source.charAt(current);
+            if (c == '"') break;
+            if (c == '\n') line++;
+            current++;
         }
         if (isAtEnd()) {
             Lox.error(line, "Unterminated string.");
@@ -151,8 +164,11 @@ public class Scanner {
         }
         advance();
 
-        String value = source.substring(start+1, current-1);
-        addToken(STRING, value);
+        addToken(STRING);
+    }
+
+    private boolean isBlank(char c) {
+        return c == ' ' || c == '\t' || c == '\r';
     }
 
     private boolean isDigit(char c) {
@@ -176,15 +192,69 @@ public class Scanner {
             advance();
             while (isDigit(peek())) advance();
         }
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     private void identifier() {
-        while(isAlphaNum(peek())) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        // The hash Symbols needs, computed on the way.
+        int hash = source.charAt(start);
+        while (!isAtEnd()) {
+            char c = source.charAt(current);
+            if (!isAlphaNum(c)) break;
+            hash = 31 * hash + c;
+            current++;
+        }
+
+        TokenType type = keyword();
+        if (type != null) {
+            addToken(type);
+        } else {
+            tokens.add(IDENTIFIER, start, current - start, line, Symbols.intern(source, start, current, hash));
+        }
+    }
+
+    private TokenType keyword() {
+        switch (source.charAt(start)) {
+            case 'a': return keyword(1, "nd", AND);
+            case 'c': return keyword(1, "lass", CLASS);
+            case 'e': return keyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return keyword(2, "lse", FALSE);
+                        case 'o': return keyword(2, "r", FOR);
+                        case 'u': return keyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(1, "f", IF);
+            case 'n': return keyword(1, "il", NIL);
+            case 'o': return keyword(1, "r", OR);
+            case 'p': return keyword(1, "rint", PRINT);
+            case 'r': return keyword(1, "eturn", RETURN);
+            case 's': return keyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return keyword(2, "is", THIS);
+                        case 'r': return keyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1, "ar", VAR);
+            case 'w': return keyword(1, "hile", WHILE);
+        }
+        return null;
+    }
+
+    // The keyword type if the lexeme is its first offset chars followed by
+    // rest, or null.
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return null;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) return null;
+        }
+        return type;
     }
     private void multi_comment() {
         while ((peek() != '*' || peekNext() != '/') && !isAtEnd()) {
@@ -0,0 +1,185 @@
+package fr.bvarillon.lox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Source
+ *
+ * The text of a script, as the Scanner reads it: one char at a time, with
+ * the text of a token only cut out when it is needed. A script read from a
+ * file is not decoded into a String but scanned straight from the mapped
+ * file. Lox syntax is ASCII, so in a charset extending ASCII each byte of
+ * the syntax is the char it stands for, and only the text of tokens, which
+ * may hold other characters in strings, is decoded.
+ *
+ * A script read from a stream is only read as far as the Scanner needs,
+ * and the text it is done with is released, see Scanner.release.
+ */
+abstract class Source {
+
+    // Whether there is a char at index, reading it in if needed.
+    abstract boolean has(int index);
+
+    abstract char charAt(int index);
+
+    abstract String substring(int start, int end);
+
+    // Whether the char at index is only the continuation of a character
+    // started before it, so a stray character is reported once.
+    abstract boolean continues(int index);
+
+    // Drops the text before offset, when the source can, and returns by
+    // how much the indices of the remaining text moved back.
+    int release(int offset) {
+        return 0;
+    }
+
+    static Source of(String text) {
+        return new Text(text);
+    }
+
+    static Source read(Reader reader) {
+        return new Stream(reader);
+    }
+
+    static Source map(Path path, Charset charset) throws IOException {
+        if (!extendsAscii(charset)) return of(new String(Files.readAllBytes(path), charset));
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Script too large: " + path);
+            return new Mapped(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), charset);
+        }
+    }
+
+    private static boolean extendsAscii(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8)
+            || charset.equals(StandardCharsets.US_ASCII)
+            || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    private static class Text extends Source {
+        private final String text;
+
+        Text(String text) {
+            this.text = text;
+        }
+
+        @Override
+        boolean has(int index) {
+            return index < text.length();
+        }
+
+        @Override
+        char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        String substring(int start, int end) {
+            return text.substring(start, end);
+        }
+
+        @Override
+        boolean continues(int index) {
+            return Character.isLowSurrogate(text.charAt(index));
+        }
+    }
+
+    // Indices are byte offsets in the file.
+    private static class Mapped extends Source {
+        private final MappedByteBuffer bytes;
+        private final Charset charset;
+        private final boolean utf8;
+
+        Mapped(MappedByteBuffer bytes, Charset charset) {
+            this.bytes = bytes;
+            this.charset = charset;
+            this.utf8 = charset.equals(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        boolean has(int index) {
+            return index < bytes.limit();
+        }
+
+        @Override
+        char charAt(int index) {
+            return (char)(bytes.get(index) & 0xff);
+        }
+
+        @Override
+        String substring(int start, int end) {
+            byte[] text = new byte[end - start];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = bytes.get(start + i);
+            }
+            return new String(text, charset);
+        }
+
+        @Override
+        boolean continues(int index) {
+            return utf8 && (bytes.get(index) & 0xc0) == 0x80;
+        }
+    }
+
+    // Indices are relative to the first char not released yet.
+    private static class Stream extends Source {
+        private final Reader reader;
+        private char[] buffer = new char[8192];
+        private int count = 0;
+        private boolean ended = false;
+
+        Stream(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        boolean has(int index) {
+            while (index >= count && !ended) {
+                if (count == buffer.length) buffer = Arrays.copyOf(buffer, count * 2);
+                int read;
+                try {
+                    read = reader.read(buffer, count, buffer.length - count);
+                } catch (IOException error) {
+                    throw new UncheckedIOException(error);
+                }
+                if (read < 0) ended = true;
+                else count += read;
+            }
+            return index < count;
+        }
+
+        @Override
+        char charAt(int index) {
+            return buffer[index];
+        }
+
+        @Override
+        String substring(int start, int end) {
+            return new String(buffer, start, end - start);
+        }
+
+        @Override
+        boolean continues(int index) {
+            return Character.isLowSurrogate(buffer[index]);
+        }
+
+        @Override
+        int release(int offset) {
+            System.arraycopy(buffer, offset, buffer, 0, count - offset);
+            count -= offset;
+            return offset;
+        }
+    }
+}
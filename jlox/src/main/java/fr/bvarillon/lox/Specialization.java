@@ -0,0 +1,30 @@
+package fr.bvarillon.lox;
+
+/**
+ * Specialization
+ *
+ * Type feedback recorded by the Interpreter on Binary, Unary and Logical
+ * nodes. A node starts UNINITIALIZED, rewrites itself into the form matching
+ * the operand types of its first evaluation, and falls back to GENERIC for
+ * good the first time the guard of that form fails.
+ */
+enum Specialization {
+    UNINITIALIZED,
+    GENERIC,
+
+    NUMBER_ADD,
+    NUMBER_SUBTRACT,
+    NUMBER_MULTIPLY,
+    NUMBER_DIVIDE,
+    NUMBER_GREATER,
+    NUMBER_GREATER_EQUAL,
+    NUMBER_LESS,
+    NUMBER_LESS_EQUAL,
+    STRING_ADD,
+
+    NUMBER_NEGATE,
+    BOOLEAN_NOT,
+
+    BOOLEAN_AND,
+    BOOLEAN_OR
+}
@@ -9,7 +9,9 @@ abstract class Stmt {
     R visit(Function STMT);
     R visit(If STMT);
     R visit(While STMT);
+    R visit(For STMT);
     R visit(Print STMT);
+    R visit(PrintVar STMT);
     R visit(Return STMT);
     R visit(Var STMT);
     }
@@ -26,6 +28,7 @@ abstract class Stmt {
     }
 
         final List<Stmt> statements;
+        int frameSize;
     }
 
 // Class Expression
@@ -58,6 +61,13 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot;
+        boolean boxed;
+        int frameSize;
+        int[] captures;
+        int[] boxedParams;
+        int calls;
+        ClosureCompiler.Exec[] compiled;
     }
 
 // Class If
@@ -92,6 +102,31 @@ abstract class Stmt {
 
         final Expr condition;
         final Stmt body;
+        int backEdges;
+        ClosureCompiler.Exec compiled;
+    }
+
+// Class For
+    static class For extends Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+        this.initializer = initializer;
+        this.condition = condition;
+        this.increment = increment;
+        this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+        final Stmt body;
+        int frameSize;
+        int backEdges;
+        ClosureCompiler.Exec compiled;
     }
 
 // Class Print
@@ -108,6 +143,22 @@ abstract class Stmt {
         final Expr expression;
     }
 
+// Class PrintVar
+    static class PrintVar extends Stmt {
+    PrintVar(Stmt.Print print, Expr.Var var) {
+        this.print = print;
+        this.var = var;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+        final Stmt.Print print;
+        final Expr.Var var;
+    }
+
 // Class Return
     static class Return extends Stmt {
     Return(Token keyword, Expr value) {
@@ -138,6 +189,8 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot;
+        boolean boxed;
     }
 
 
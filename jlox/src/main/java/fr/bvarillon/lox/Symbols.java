@@ -0,0 +1,93 @@
+package fr.bvarillon.lox;
+
+import java.util.Arrays;
+
+/**
+ * Symbols
+ *
+ * The table of every identifier met so far, each interned to a small id
+ * when it is scanned. Identifier tokens carry their id, and the Resolver
+ * and the globals work on ids, so past the Scanner a name is never hashed
+ * or compared char by char again. Ids last as long as the process, so the
+ * lines of the REPL share them.
+ *
+ * The table is an open addressing hash set of ids, probed with the chars
+ * of the source directly: an identifier already known costs no String.
+ */
+final class Symbols {
+    private static String[] names = new String[256];
+    private static int[] hashes = new int[256];
+    private static int count = 0;
+    // Ids plus one, 0 for a free entry; kept at most half full.
+    private static int[] table = new int[512];
+
+    private Symbols() {}
+
+    static int intern(Source source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        return intern(source, start, end, hash);
+    }
+
+    // With the String hash of the name, which the Scanner computes as it
+    // reads it.
+    static int intern(Source source, int start, int end, int hash) {
+        int mask = table.length - 1;
+        for (int entry = spread(hash) & mask; ; entry = (entry + 1) & mask) {
+            int id = table[entry] - 1;
+            if (id < 0) return add(entry, source.substring(start, end), hash);
+            if (hashes[id] == hash && matches(names[id], source, start, end)) return id;
+        }
+    }
+
+    static int intern(String name) {
+        return intern(Source.of(name), 0, name.length());
+    }
+
+    static String name(int symbol) {
+        return names[symbol];
+    }
+
+    static int count() {
+        return count;
+    }
+
+    // Mixes the high bits of the String hash into the low ones the table
+    // indexes with.
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String name, Source source, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static int add(int entry, String name, int hash) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        int id = count++;
+        names[id] = name;
+        hashes[id] = hash;
+        table[entry] = id + 1;
+        if (count * 2 > table.length) rehash();
+        return id;
+    }
+
+    private static void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int entry = spread(hashes[id]) & mask;
+            while (table[entry] != 0) entry = (entry + 1) & mask;
+            table[entry] = id + 1;
+        }
+    }
+}
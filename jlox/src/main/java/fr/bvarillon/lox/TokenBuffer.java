@@ -0,0 +1,128 @@
+package fr.bvarillon.lox;
+
+import java.util.Arrays;
+
+/**
+ * TokenBuffer
+ *
+ * The tokens of a source, as parallel arrays of their type, offset, length
+ * and line rather than one object each. Lexemes and literals are only cut
+ * out of the source when the Parser asks for a Token, which it does for
+ * the names, literals and operators it keeps in the tree, not for
+ * punctuation and keywords it just checks.
+ */
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    // The powers of ten a double holds exactly.
+    private static final double[] POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Source source;
+    private byte[] types = new byte[64];
+    private int[] starts = new int[64];
+    private int[] lengths = new int[64];
+    private int[] lines = new int[64];
+    // Ids of identifiers, see Symbols.
+    private int[] symbols = new int[64];
+    private int count = 0;
+
+    TokenBuffer(Source source) {
+        this.source = source;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        add(type, start, length, line, -1);
+    }
+
+    void add(TokenType type, int start, int length, int line, int symbol) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+            symbols = Arrays.copyOf(symbols, count * 2);
+        }
+        types[count] = (byte)type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        symbols[count] = symbol;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    // Drops the tokens before index first, moving the offsets of the others
+    // back by shift as their text moved in the source.
+    void release(int first, int shift) {
+        int remaining = count - first;
+        System.arraycopy(types, first, types, 0, remaining);
+        System.arraycopy(starts, first, starts, 0, remaining);
+        System.arraycopy(lengths, first, lengths, 0, remaining);
+        System.arraycopy(lines, first, lines, 0, remaining);
+        System.arraycopy(symbols, first, symbols, 0, remaining);
+        for (int i = 0; i < remaining; i++) {
+            starts[i] -= shift;
+        }
+        count = remaining;
+    }
+
+    // An identifier's lexeme is the one interned in Symbols.
+    String lexeme(int index) {
+        if (symbols[index] >= 0) return Symbols.name(symbols[index]);
+        return source.substring(starts[index], starts[index] + lengths[index]);
+    }
+
+    Object literal(int index) {
+        switch (type(index)) {
+            case NUMBER:
+                return number(starts[index], starts[index] + lengths[index]);
+            case STRING:
+                // Without the quotes.
+                return source.substring(starts[index] + 1, starts[index] + lengths[index] - 1);
+        }
+        return null;
+    }
+
+    // Reads the digits straight from the source. Up to 2^53, the digits
+    // make an exact double, and so does a power of ten up to 1e22, so their
+    // quotient is the correctly rounded value, the one parseDouble returns.
+    // Longer literals still go through it.
+    private double number(int start, int end) {
+        long digits = 0;
+        int decimals = -1;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '.') {
+                decimals = 0;
+                continue;
+            }
+            digits = digits * 10 + (c - '0');
+            if (decimals >= 0) decimals++;
+            if (digits > 1L << 53 || decimals >= POWERS.length) {
+                return Double.parseDouble(source.substring(start, end));
+            }
+        }
+        return decimals > 0 ? digits / POWERS[decimals] : digits;
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), lines[index], symbols[index]);
+    }
+}
@@ -0,0 +1,255 @@
+package fr.bvarillon.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TypeInference
+ *
+ * Proves which operators only ever see numbers, and marks them numeric so
+ * the engines skip the type checks. It runs on the resolved program and
+ * follows the flow of each frame, knowing for every slot whether it holds
+ * a number at that point: literals, arithmetic results and locals only
+ * assigned numbers are numbers. Globals, captured locals and anything a
+ * call returns are never known, so their operators keep their checks.
+ *
+ * A visit of an expression answers whether its value is a number. A
+ * branch joins the states of its paths, and a loop is analysed until the
+ * state at its head no longer changes; the nodes are marked again on each
+ * pass, so they end up marked for that final state.
+ */
+public class TypeInference implements Expr.Visitor<Boolean>, Stmt.Visitor<Void> {
+    // For each slot of the current frame, whether it holds a number; null
+    // in top-level code, where declarations are globals.
+    private boolean[] numbers = null;
+
+    void infer(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            infer(stmt);
+        }
+    }
+
+    private void infer(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private boolean infer(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Boolean visit(Expr.Literal expr) {
+        return expr.value instanceof Double;
+    }
+
+    @Override
+    public Boolean visit(Expr.Grouping expr) {
+        return infer(expr.expression);
+    }
+
+    // An arithmetic operator either yields a number or raises an error, and
+    // so does + as soon as one operand is a number.
+    @Override
+    public Boolean visit(Expr.Binary expr) {
+        boolean left = infer(expr.left);
+        boolean right = infer(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                expr.numeric = left && right;
+                return true;
+            case PLUS:
+                expr.numeric = left && right;
+                return left || right;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LOWER:
+            case LOWER_EQUAL:
+                expr.numeric = left && right;
+                return false;
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visit(Expr.Unary expr) {
+        boolean right = infer(expr.right);
+        if (expr.operator.type != TokenType.MINUS) return false;
+        expr.numeric = right;
+        return true;
+    }
+
+    @Override
+    public Boolean visit(Expr.Logical expr) {
+        infer(expr.left);
+        boolean[] skipped = copy();
+        infer(expr.right);
+        join(skipped);
+        return false;
+    }
+
+    @Override
+    public Boolean visit(Expr.Var expr) {
+        return isFrameLocal(expr.global, expr.upvalue, expr.boxed) && numbers[expr.slot];
+    }
+
+    @Override
+    public Boolean visit(Expr.Assign expr) {
+        boolean value = infer(expr.value);
+        if (isFrameLocal(expr.global, expr.upvalue, expr.boxed)) numbers[expr.slot] = value;
+        return value;
+    }
+
+    @Override
+    public Boolean visit(Expr.Call expr) {
+        infer(expr.callee);
+        for (Expr argument : expr.arguments) {
+            infer(argument);
+        }
+        return false;
+    }
+
+    // Either the body or the call runs.
+    @Override
+    public Boolean visit(Expr.Inline expr) {
+        boolean[] called = copy();
+        infer(expr.body);
+        boolean[] inlined = numbers;
+        numbers = called;
+        infer(expr.call);
+        join(inlined);
+        return false;
+    }
+
+    // Fused nodes behave as the nodes they stand for.
+    @Override
+    public Boolean visit(Expr.LocalCompareLocal expr) {
+        return infer(expr.comparison);
+    }
+
+    @Override
+    public Boolean visit(Expr.LocalIncrement expr) {
+        return infer(expr.assign);
+    }
+
+    @Override
+    public Boolean visit(Expr.LocalUpdate expr) {
+        return infer(expr.assign);
+    }
+
+    @Override
+    public Void visit(Stmt.Expression stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Print stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.PrintVar stmt) {
+        infer(stmt.print);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Return stmt) {
+        if (stmt.value != null) infer(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Var stmt) {
+        boolean value = stmt.initializer != null && infer(stmt.initializer);
+        if (numbers != null) numbers[stmt.slot] = value && !stmt.boxed;
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Function stmt) {
+        if (numbers != null) numbers[stmt.slot] = false;
+
+        // The body runs in a frame of its own, with parameters of any type.
+        boolean[] enclosing = numbers;
+        numbers = new boolean[stmt.frameSize];
+        infer(stmt.body);
+        numbers = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.Block stmt) {
+        boolean[] enclosing = numbers;
+        if (stmt.frameSize > 0) numbers = new boolean[stmt.frameSize];
+        infer(stmt.statements);
+        numbers = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.If stmt) {
+        infer(stmt.condition);
+        boolean[] skipped = copy();
+        infer(stmt.thenStmt);
+        if (stmt.elseStmt != null) {
+            boolean[] taken = numbers;
+            numbers = skipped;
+            infer(stmt.elseStmt);
+            skipped = taken;
+        }
+        join(skipped);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.While stmt) {
+        boolean[] head;
+        do {
+            head = copy();
+            infer(stmt.condition);
+            infer(stmt.body);
+            join(head);
+        } while (!Arrays.equals(head, numbers));
+        // Leaving the loop after a last test of the condition.
+        infer(stmt.condition);
+        return null;
+    }
+
+    @Override
+    public Void visit(Stmt.For stmt) {
+        boolean[] enclosing = numbers;
+        if (stmt.frameSize > 0) numbers = new boolean[stmt.frameSize];
+        if (stmt.initializer != null) infer(stmt.initializer);
+        boolean[] head;
+        do {
+            head = copy();
+            if (stmt.condition != null) infer(stmt.condition);
+            infer(stmt.body);
+            if (stmt.increment != null) infer(stmt.increment);
+            join(head);
+        } while (!Arrays.equals(head, numbers));
+        if (stmt.condition != null) infer(stmt.condition);
+        numbers = enclosing;
+        return null;
+    }
+
+    private boolean isFrameLocal(boolean global, int upvalue, boolean boxed) {
+        return !global && upvalue < 0 && !boxed;
+    }
+
+    private boolean[] copy() {
+        return numbers == null ? null : numbers.clone();
+    }
+
+    // Keeps as numbers only the slots that are numbers on both paths.
+    private void join(boolean[] other) {
+        if (numbers == null) return;
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] &= other[i];
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package fr.bvarillon.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static fr.bvarillon.lox.OpCode.*;
+
+/**
+ * VM
+ *
+ * Stack based virtual machine running the chunks produced by the
+ * BytecodeCompiler. Values live in one contiguous stack and a Lox call only
+ * pushes a (reused) call frame, instead of allocating environments and
+ * argument lists and nesting Java calls like the tree-walking Interpreter.
+ *
+ * Both stacks live on the heap and grow on demand, so recursion depth is
+ * bounded by maxDepth rather than by the Java thread stack.
+ */
+public class VM {
+    static final int DEFAULT_MAX_DEPTH = 1000000;
+
+    static class Function {
+        final String name;
+        final int arity;
+        int upvalueCount = 0;
+        final Chunk chunk = new Chunk();
+
+        Function(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        @Override
+        public String toString() {
+            return "<fun " + name + ">";
+        }
+    }
+
+    static class Closure {
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function, Upvalue[] upvalues) {
+            this.function = function;
+            this.upvalues = upvalues;
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    static class Upvalue {
+        // Stack slot of the captured local while it is alive, -1 once closed.
+        int index;
+        Object closed;
+        Upvalue next;
+
+        Upvalue(int index) {
+            this.index = index;
+        }
+    }
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+
+    private final Interpreter interpreter;
+    private final Globals globals;
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    // Open upvalues, sorted by decreasing stack slot.
+    private Upvalue openUpvalues = null;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public void interpret(List<Stmt> stmts) {
+        Function script = new BytecodeCompiler().compile(stmts);
+        if (Lox.hadError) return;
+
+        try {
+            Closure closure = new Closure(script, new Upvalue[0]);
+            stack[0] = closure;
+            sp = 1;
+            pushFrame(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            Arrays.fill(stack, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        Chunk chunk = frame.closure.function.chunk;
+        byte[] code = chunk.code;
+        int ip = frame.ip;
+        int base = frame.base;
+        // Kept in locals so the JIT can hold them in registers; every
+        // instruction pushes at most one value, hence the single check.
+        Object[] stack = this.stack;
+        int sp = this.sp;
+
+        for (;;) {
+            if (sp == stack.length) {
+                stack = this.stack = Arrays.copyOf(stack, sp * 2);
+            }
+            switch (code[ip++]) {
+                case CONSTANT:
+                    stack[sp++] = chunk.constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case NIL:
+                    stack[sp++] = null;
+                    break;
+                case TRUE:
+                    stack[sp++] = true;
+                    break;
+                case FALSE:
+                    stack[sp++] = false;
+                    break;
+                case POP:
+                    stack[--sp] = null;
+                    break;
+                case GET_LOCAL:
+                    stack[sp++] = stack[base + readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case SET_LOCAL:
+                    stack[base + readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case GET_GLOBAL: {
+                    int index = readShort(code, ip);
+                    ip += 2;
+                    Globals.Cell cell = chunk.cells[index];
+                    // Uses share the constant, so errors name this one's token.
+                    if (cell == null) {
+                        cell = chunk.cells[index] = globals.lookup(chunk.tokens[ip - 3]);
+                    }
+                    stack[sp++] = cell.value;
+                    break;
+                }
+                case DEFINE_GLOBAL:
+                    globals.define(((Token)chunk.constants[readShort(code, ip)]).symbol, stack[--sp]);
+                    stack[sp] = null;
+                    ip += 2;
+                    break;
+                case SET_GLOBAL: {
+                    int index = readShort(code, ip);
+                    ip += 2;
+                    Globals.Cell cell = chunk.cells[index];
+                    if (cell == null) {
+                        cell = chunk.cells[index] = globals.lookupForAssign(chunk.tokens[ip - 3]);
+                    }
+                    cell.value = stack[sp - 1];
+                    break;
+                }
+                case GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    stack[sp++] = upvalue.index >= 0 ? stack[upvalue.index] : upvalue.closed;
+                    break;
+                }
+                case SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    if (upvalue.index >= 0) stack[upvalue.index] = stack[sp - 1];
+                    else upvalue.closed = stack[sp - 1];
+                    break;
+                }
+                case EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+                    stack[sp] = null;
+                    break;
+                }
+                case NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+                    stack[sp] = null;
+                    break;
+                }
+                case GREATER: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left > (double)right;
+                    break;
+                }
+                case GREATER_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left >= (double)right;
+                    break;
+                }
+                case LESS: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left < (double)right;
+                    break;
+                }
+                case LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left <= (double)right;
+                    break;
+                }
+                case ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double)left + (double)right;
+                    } else if (Rope.isString(left) && Rope.isString(right)) {
+                        stack[sp - 1] = Rope.concat(left, right);
+                    } else {
+                        throw new RuntimeError(chunk.tokens[ip - 1], "Operands must be two numbers or two strings.");
+                    }
+                    stack[sp] = null;
+                    break;
+                }
+                case SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left - (double)right;
+                    break;
+                }
+                case MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left * (double)right;
+                    break;
+                }
+                case DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], left, right);
+                    stack[sp - 1] = (double)left / (double)right;
+                    break;
+                }
+                case NOT:
+                    stack[sp - 1] = !Interpreter.isThruthy(stack[sp - 1]);
+                    break;
+                case NEGATE: {
+                    Object right = stack[sp - 1];
+                    Interpreter.checkNumberOperand(chunk.tokens[ip - 1], right);
+                    stack[sp - 1] = -(double)right;
+                    break;
+                }
+                case PRINT:
+                    System.out.println(Interpreter.stringify(stack[--sp]));
+                    stack[sp] = null;
+                    break;
+                case JUMP:
+                    ip += 2 + readShort(code, ip);
+                    break;
+                case JUMP_IF_FALSE: {
+                    Object condition = stack[--sp];
+                    stack[sp] = null;
+                    if (Interpreter.isThruthy(condition)) ip += 2;
+                    else ip += 2 + readShort(code, ip);
+                    break;
+                }
+                case LOOP:
+                    ip -= readShort(code, ip) - 2;
+                    break;
+                case CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    Object callee = stack[sp - 1 - argCount];
+                    if (callee instanceof Closure) {
+                        Closure closure = (Closure)callee;
+                        if (argCount != closure.function.arity) {
+                            throw new RuntimeError(chunk.tokens[ip - 1], "Expected " + closure.function.arity + " arguments but found " + argCount + ".");
+                        }
+                        if (frameCount == maxDepth) {
+                            throw new RuntimeError(chunk.tokens[ip - 1], "Stack overflow.");
+                        }
+                        frame.ip = ip;
+                        frame = pushFrame(closure, sp - 1 - argCount);
+                        chunk = closure.function.chunk;
+                        code = chunk.code;
+                        ip = 0;
+                        base = frame.base;
+                    } else if (callee instanceof LoxCallable) {
+                        LoxCallable function = (LoxCallable)callee;
+                        if (argCount != function.arity()) {
+                            throw new RuntimeError(chunk.tokens[ip - 1], "Expected " + function.arity() + " arguments but found " + argCount + ".");
+                        }
+                        Object result = callForeign(function, stack, sp - argCount, argCount);
+                        Arrays.fill(stack, sp - argCount, sp, null);
+                        sp -= argCount;
+                        stack[sp - 1] = result;
+                    } else {
+                        throw new RuntimeError(chunk.tokens[ip - 1], "Can only call functions and classes");
+                    }
+                    break;
+                }
+                case CLOSURE: {
+                    Function function = (Function)chunk.constants[readShort(code, ip)];
+                    ip += 2;
+                    Upvalue[] upvalues = new Upvalue[function.upvalueCount];
+                    for (int i = 0; i < upvalues.length; i++) {
+                        boolean isLocal = code[ip] == 1;
+                        int index = readShort(code, ip + 1);
+                        ip += 3;
+                        upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                    }
+                    stack[sp++] = new Closure(function, upvalues);
+                    break;
+                }
+                case CLOSE_UPVALUE:
+                    closeUpvalues(stack, sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(stack, base);
+                    frameCount--;
+                    Arrays.fill(stack, base, sp, null);
+                    if (frameCount == 0) return;
+                    sp = base;
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    chunk = frame.closure.function.chunk;
+                    code = chunk.code;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    // Calls a callable the VM does not run itself, with the arguments in
+    // the stack from first. Up to four arguments go through the matching
+    // callN entry point, so no array is built for them.
+    private Object callForeign(LoxCallable function, Object[] stack, int first, int argCount) {
+        switch (argCount) {
+            case 0: return function.call0(interpreter);
+            case 1: return function.call1(interpreter, stack[first]);
+            case 2: return function.call2(interpreter, stack[first], stack[first + 1]);
+            case 3: return function.call3(interpreter, stack[first], stack[first + 1], stack[first + 2]);
+            case 4: return function.call4(interpreter, stack[first], stack[first + 1], stack[first + 2], stack[first + 3]);
+            default: return function.call(interpreter, Arrays.copyOfRange(stack, first, first + argCount));
+        }
+    }
+
+    private CallFrame pushFrame(Closure closure, int base) {
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = frames[frameCount] = new CallFrame();
+        }
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        return frame;
+    }
+
+    private Upvalue captureUpvalue(int index) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.index > index) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.index == index) return upvalue;
+
+        Upvalue created = new Upvalue(index);
+        created.next = upvalue;
+        if (previous == null) openUpvalues = created;
+        else previous.next = created;
+        return created;
+    }
+
+    private void closeUpvalues(Object[] stack, int last) {
+        while (openUpvalues != null && openUpvalues.index >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.index];
+            upvalue.index = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+}
@@ -16,24 +16,30 @@ public class GenerateAST {
         }
         String output_dir = args[0];
         defineAst(output_dir, "Expr", Arrays.asList(
-            "Assign     : Token name, Expr value",
-            "Binary     : Expr left, Token operator, Expr right",
-            "Call       : Expr callee, Token paren, List<Expr> arguments",
+            "Assign     : Token name, Expr value | int slot, int upvalue = -1, boolean boxed, boolean global = true, Globals.Cell cell",
+            "Binary     : Expr left, Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED, boolean numeric",
+            "Call       : Expr callee, Token paren, List<Expr> arguments | boolean tail",
             "Grouping   : Expr expression",
+            "Inline     : Expr.Call call, Stmt.Function function, Expr body",
             "Literal    : Object value",
-            "Logical    : Expr left, Token operator, Expr right",
-            "Unary      : Token operator, Expr right",
-            "Var        : Token name"
+            "LocalCompareLocal : Expr.Binary comparison, Expr.Var left, Expr.Var right",
+            "LocalIncrement : Expr.Assign assign, Expr.Var var, double delta",
+            "LocalUpdate : Expr.Assign assign, Expr.Var var, Token operator, Expr operand",
+            "Logical    : Expr left, Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED",
+            "Unary      : Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED, boolean numeric",
+            "Var        : Token name | int slot, int upvalue = -1, boolean boxed, boolean global = true, Globals.Cell cell"
         ));
         defineAst(output_dir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
+            "Block      : List<Stmt> statements | int frameSize",
             "Expression : Expr expression",
-            "Function   : Token name, List<Token> params, List<Stmt> body", 
+            "Function   : Token name, List<Token> params, List<Stmt> body | int slot, boolean boxed, int frameSize, int[] captures, int[] boxedParams, int calls, ClosureCompiler.Exec[] compiled",
             "If         : Expr condition, Stmt thenStmt, Stmt elseStmt",
-            "While      : Expr condition, Stmt body",
+            "While      : Expr condition, Stmt body | int backEdges, ClosureCompiler.Exec compiled",
+            "For        : Stmt initializer, Expr condition, Expr increment, Stmt body | int frameSize, int backEdges, ClosureCompiler.Exec compiled",
             "Print      : Expr expression",
+            "PrintVar   : Stmt.Print print, Expr.Var var",
             "Return     : Token keyword, Expr value",
-            "Var        : Token name, Expr initializer"
+            "Var        : Token name, Expr initializer | int slot, boolean boxed"
         ));
     } 
 
@@ -52,7 +58,12 @@ public class GenerateAST {
         for (String type : types) {
             String className = type.split(":")[0].trim(); 
             String fields = type.split(":")[1].trim();
-                defineType(writer, baseName,className, fields);
+            String resolved = null;
+            if (fields.contains("|")) {
+                resolved = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+                defineType(writer, baseName,className, fields, resolved);
         }
 
 
@@ -76,7 +87,9 @@ public class GenerateAST {
         writer.println();
     }
  
-    private static void defineType(PrintWriter writer, String baseName, String className, String fields) {
+    // Fields after '|' are filled in after parsing, by the Resolver or as
+    // runtime caches, so they are mutable and left out of the constructor.
+    private static void defineType(PrintWriter writer, String baseName, String className, String fields, String resolved) {
         writer.println("// Class " + className);
         writer.println("    static class " + className + " extends " + baseName + " {");
 
@@ -99,6 +112,11 @@ public class GenerateAST {
         for (String field : fieldsList) {
             writer.println("        final " + field + ";");
         }
+        if (resolved != null) {
+            for (String field : resolved.split(", ")) {
+                writer.println("        " + field + ";");
+            }
+        }
         
         writer.println("    }");
         writer.println();
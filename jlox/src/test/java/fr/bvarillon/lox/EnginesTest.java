@@ -0,0 +1,80 @@
+package fr.bvarillon.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * EnginesTest
+ *
+ * Runs every script of the scripts resource folder on each engine and
+ * compares what it prints with the "// expect: " comments of the script,
+ * one per line of output, so all engines are held to the same results.
+ * Each run is a fresh JVM with the default thread stack, so deep
+ * recursion has to really be deep.
+ */
+public class EnginesTest {
+    private static final String[] ENGINES = {"tree", "tiered", "closure", "vm"};
+    private static final String EXPECT = "// expect: ";
+
+    static Stream<Arguments> runs() throws IOException, URISyntaxException {
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(scripts())) {
+            scripts = files.filter(file -> file.toString().endsWith(".lox")).sorted().collect(Collectors.toList());
+        }
+        return scripts.stream().flatMap(script -> Arrays.stream(ENGINES)
+                .map(engine -> Arguments.of(script.getFileName().toString(), engine)));
+    }
+
+    @ParameterizedTest(name = "{0} on {1}")
+    @MethodSource("runs")
+    public void printsExpectedOutput(String name, String engine) throws Exception {
+        Path script = scripts().resolve(name);
+        List<String> expected = Files.readAllLines(script, StandardCharsets.UTF_8).stream()
+                .filter(line -> line.contains(EXPECT))
+                .map(line -> line.substring(line.indexOf(EXPECT) + EXPECT.length()))
+                .collect(Collectors.toList());
+
+        LoxProcess lox = LoxProcess.run("--engine=" + engine, script.toString());
+
+        assertEquals(String.join("\n", expected), lox.output);
+        assertEquals(0, lox.exitCode);
+    }
+
+    // The whole top level is one chunk: it must not need a constant per use
+    // of the same literal or global.
+    @Test
+    public void runsLargeScriptOnTheVM(@TempDir Path dir) throws Exception {
+        StringBuilder source = new StringBuilder("var x = 0;\n");
+        for (int i = 0; i < 70000; i++) {
+            source.append("x = x + 1;\n");
+        }
+        source.append("print x;\n");
+        Path script = dir.resolve("large.lox");
+        Files.write(script, source.toString().getBytes(StandardCharsets.UTF_8));
+
+        LoxProcess lox = LoxProcess.run("--engine=vm", script.toString());
+
+        assertEquals("70000", lox.output);
+        assertEquals(0, lox.exitCode);
+    }
+
+    private static Path scripts() throws URISyntaxException {
+        return Paths.get(EnginesTest.class.getResource("/scripts").toURI());
+    }
+}
@@ -0,0 +1,45 @@
+package fr.bvarillon.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * LoxProcess
+ *
+ * Runs jlox in a fresh JVM, as Lox keeps its state in statics, and
+ * collects its exit code and its output, errors included.
+ */
+class LoxProcess {
+    final int exitCode;
+    final String output;
+
+    private LoxProcess(int exitCode, String output) {
+        this.exitCode = exitCode;
+        this.output = output;
+    }
+
+    static LoxProcess run(String... args) throws IOException, InterruptedException, URISyntaxException {
+        return runWithInput("", args);
+    }
+
+    // Runs jlox with the given text on its standard input.
+    static LoxProcess runWithInput(String input, String... args) throws IOException, InterruptedException, URISyntaxException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classes = Paths.get(Lox.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-Dfile.encoding=UTF-8", "-cp", classes, "fr.bvarillon.lox.Lox"));
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (OutputStream stdin = process.getOutputStream()) {
+            stdin.write(input.getBytes(StandardCharsets.UTF_8));
+        }
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        return new LoxProcess(process.waitFor(), output.strip().replace("\r\n", "\n"));
+    }
+}
@@ -0,0 +1,48 @@
+package fr.bvarillon.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * MaxDepthTest
+ *
+ * The --max-depth option bounds the VM's call frames; it takes a positive
+ * number and is refused by the engines it does not apply to.
+ */
+public class MaxDepthTest {
+
+    @Test
+    public void stopsDeepRecursionInTheVM() throws Exception {
+        LoxProcess lox = LoxProcess.run("--engine=vm", "--max-depth=50", script("deep.lox").toString());
+
+        assertEquals(70, lox.exitCode);
+        assertTrue(lox.output.contains("Stack overflow."), lox.output);
+    }
+
+    @Test
+    public void rejectsDepthsBelowOne() throws Exception {
+        for (String depth : new String[] {"0", "-1", "many"}) {
+            LoxProcess lox = LoxProcess.run("--engine=vm", "--max-depth=" + depth, script("deep.lox").toString());
+
+            assertEquals(64, lox.exitCode, depth);
+        }
+    }
+
+    @Test
+    public void rejectsOtherEngines() throws Exception {
+        for (String engine : new String[] {"tree", "tiered", "closure"}) {
+            LoxProcess lox = LoxProcess.run("--engine=" + engine, "--max-depth=50", script("deep.lox").toString());
+
+            assertEquals(64, lox.exitCode, engine);
+        }
+    }
+
+    private static Path script(String name) throws Exception {
+        return Paths.get(MaxDepthTest.class.getResource("/" + name).toURI());
+    }
+}
@@ -0,0 +1,65 @@
+package fr.bvarillon.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * ScannerBenchmark
+ *
+ * Measures the throughput of the Scanner on a large corpus, built by
+ * repeating a script up to a size in megabytes, 64 by default. It lives
+ * with the tests, out of the jar, and runs after mvn test-compile:
+ *
+ *   java -cp target/classes:target/test-classes fr.bvarillon.lox.ScannerBenchmark bench/fusion.lox
+ *
+ * The corpus is written to a temporary file and scanned from the mapped
+ * file, as Lox.runFile does, a few times over to warm up. Number literals
+ * are parsed too, as the Parser would ask for them. Each round prints its
+ * throughput in MB/s.
+ */
+public class ScannerBenchmark {
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage ScannerBenchmark <script> [megabytes]");
+            System.exit(64);
+        }
+        byte[] script = Files.readAllBytes(Paths.get(args[0]));
+        long size = (args.length == 2 ? Long.parseLong(args[1]) : 64) * 1024 * 1024;
+
+        Path corpus = Files.createTempFile("corpus", ".lox");
+        try {
+            byte[] chunk = new byte[script.length + 1];
+            System.arraycopy(script, 0, chunk, 0, script.length);
+            chunk[script.length] = '\n';
+            try (OutputStream output = Files.newOutputStream(corpus)) {
+                for (long written = 0; written < size; written += chunk.length) {
+                    output.write(chunk);
+                }
+            }
+
+            double megabytes = Files.size(corpus) / (1024.0 * 1024.0);
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                int tokens = scan(corpus);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%.1f MB, %d tokens: %.1f MB/s%n", megabytes, tokens, megabytes / seconds);
+            }
+        } finally {
+            Files.delete(corpus);
+        }
+    }
+
+    private static int scan(Path corpus) throws IOException {
+        TokenBuffer tokens = new Scanner(Source.map(corpus, StandardCharsets.UTF_8)).scanTokens();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) == TokenType.NUMBER) tokens.literal(i);
+        }
+        return tokens.size();
+    }
+}
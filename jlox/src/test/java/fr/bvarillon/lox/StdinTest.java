@@ -0,0 +1,47 @@
+package fr.bvarillon.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * StdinTest
+ *
+ * With `jlox -` each top-level declaration runs as soon as it is parsed,
+ * so what comes before an error has already run.
+ */
+public class StdinTest {
+
+    @Test
+    public void runsDeclarationsInOrder() throws Exception {
+        LoxProcess lox = LoxProcess.runWithInput(
+                "var a = 1;\nfun twice(x) { return x * 2; }\nprint twice(a);\n{ var b = twice(3); print b; }\n", "-");
+
+        assertEquals("2\n6", lox.output);
+        assertEquals(0, lox.exitCode);
+    }
+
+    @Test
+    public void runsWhatPrecedesASyntaxError() throws Exception {
+        LoxProcess lox = LoxProcess.runWithInput("print 1;\nprint ;\nprint 2;\nvar = 3;\n", "-");
+
+        String[] lines = lox.output.split("\n");
+        assertEquals("1", lines[0]);
+        // The rest is only parsed, so both errors are reported.
+        assertEquals(3, lines.length, lox.output);
+        assertTrue(lines[1].startsWith("[line 2]"), lox.output);
+        assertTrue(lines[2].startsWith("[line 4]"), lox.output);
+        assertEquals(65, lox.exitCode);
+    }
+
+    @Test
+    public void stopsAtARuntimeError() throws Exception {
+        LoxProcess lox = LoxProcess.runWithInput("print 1;\nprint -\"a\";\nprint 2;\n", "-");
+
+        assertTrue(lox.output.startsWith("1\n"), lox.output);
+        assertFalse(lox.output.contains("\n2"), lox.output);
+        assertEquals(70, lox.exitCode);
+    }
+}